@@ -0,0 +1,109 @@
+package com.cleo.labs.resttest;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Benchmarks of the {@link JsonComparator} hot paths: comparing a response
+ * against literal and script-heavy templates, evaluating a request template,
+ * and binding a response into the script engine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class ComparatorBenchmark {
+    /**
+     * The number of leaf values in the documents.
+     */
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    /**
+     * How {@code putJson} binds the documents.
+     */
+    @Param({"SOURCE", "VIEW"})
+    public JsonComparator.Binding binding;
+
+    private JsonComparator comparator;
+    private JsonNode       actual;
+    private JsonNode       literal;
+    private JsonNode       scripted;
+    private JsonNode       request;
+    private ObjectNode     payload;
+    private long           sequence;
+
+    @Setup
+    public void setup() {
+        comparator = new JsonComparator().setBinding(binding);
+        actual     = Fixtures.document(size);
+        literal    = Fixtures.template(actual, 0);
+        scripted   = Fixtures.template(actual, 2);
+        request    = Fixtures.request(size);
+        payload    = Fixtures.document(size);
+        Fixtures.variables(comparator);
+    }
+
+    @TearDown
+    public void tearDown() {
+        comparator.close();
+    }
+
+    /*------------------------------------------------------------------------*
+     * Benchmarks.                                                            *
+     *------------------------------------------------------------------------*/
+    @Benchmark
+    public List<JsonComparator.Comparison> compareLiteral() {
+        return comparator.compareNodes(literal, actual);
+    }
+
+    @Benchmark
+    public List<JsonComparator.Comparison> compareScripts() {
+        return comparator.compareNodes(scripted, actual);
+    }
+
+    /**
+     * Evaluates a request template.  Since {@code evalNode} edits its
+     * argument in place, this includes the cost of copying the template.
+     */
+    @Benchmark
+    public JsonNode evalNode() {
+        return comparator.evalNode(request.deepCopy());
+    }
+
+    @Benchmark
+    public Object evalScript() {
+        return comparator.evalScript("id+1");
+    }
+
+    /**
+     * Binds the document and reads one field back, as an {@code after}
+     * script would.  Each invocation binds a different document, as each
+     * step of a real run does, so the {@code SOURCE} binding can not be
+     * served from a cache of compiled scripts.
+     */
+    @Benchmark
+    public Object putJson() {
+        payload.put("sequence", ++sequence);
+        comparator.putJson("response", payload);
+        return comparator.evalScript("response.f0");
+    }
+}
@@ -0,0 +1,118 @@
+package com.cleo.labs.resttest;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Synthetic documents and templates for the benchmarks, shaped like the
+ * cases in {@code test-compare.yaml}: objects of numbers, booleans and
+ * strings with nested lists and sub-objects, scaled to a number of fields.
+ */
+public class Fixtures {
+    private static final JsonNodeFactory factory = JsonNodeFactory.instance;
+
+    /**
+     * Returns a document of about {@code size} leaf values.  Every tenth
+     * field is a list of three strings, and every hundredth a sub-object
+     * of ten fields.
+     * @param size the number of leaf values
+     * @return the document
+     */
+    public static ObjectNode document(int size) {
+        ObjectNode doc = factory.objectNode();
+        int i = 0;
+        while (i<size) {
+            String name = "f"+i;
+            if (i%100==99) {
+                ObjectNode sub = doc.putObject(name);
+                for (int j=0; j<10; j++) {
+                    sub.put("s"+j, j);
+                }
+                i += 10;
+            } else if (i%10==9) {
+                ArrayNode list = doc.putArray(name);
+                list.add("one").add("two").add("three");
+                i += 3;
+            } else if (i%3==0) {
+                doc.put(name, i);
+            } else if (i%3==1) {
+                doc.put(name, i%2==0);
+            } else {
+                doc.put(name, "value "+i);
+            }
+            i++;
+        }
+        return doc;
+    }
+
+    /**
+     * Returns a template for {@code doc} in which every {@code stride}-th
+     * leaf value is replaced by a ${script} that checks it, alternating
+     * between <code>${success}</code> and <code>${expect(actual==...)}</code>
+     * (the strings are checked with a capture into a variable).  A
+     * {@code stride} of {@code 0} leaves the template literal.
+     * @param doc the document
+     * @param stride how often to use a ${script}
+     * @return the template
+     */
+    public static JsonNode template(JsonNode doc, int stride) {
+        JsonNode template = doc.deepCopy();
+        if (stride>0) {
+            scripts(template, stride, new int[1]);
+        }
+        return template;
+    }
+
+    private static void scripts(JsonNode node, int stride, int[] count) {
+        for (Iterator<Map.Entry<String,JsonNode>> i=node.fields(); i.hasNext();) {
+            Map.Entry<String,JsonNode> field = i.next();
+            JsonNode value = field.getValue();
+            if (value.isObject()) {
+                scripts(value, stride, count);
+            } else if (value.isValueNode() && count[0]++%stride==0) {
+                String script;
+                if (value.isNumber() || value.isBoolean()) {
+                    script = count[0]%2==0 ? "${success}" : "${expect(actual=="+value+")}";
+                } else {
+                    script = "${var "+field.getKey()+"=actual; success}";
+                }
+                ((ObjectNode)node).put(field.getKey(), script);
+            }
+        }
+    }
+
+    /**
+     * Returns a request template for a step, with {@code size} body fields
+     * that are computed from the variables set by {@link #variables(JsonComparator)}.
+     * @param size the number of body fields
+     * @return the request template
+     */
+    public static ObjectNode request(int size) {
+        ObjectNode request = factory.objectNode();
+        request.put("method", "POST");
+        request.put("path", "${\"/things/\"+id}");
+        request.putObject("headers").put("Accept", "application/json");
+        ObjectNode body = request.putObject("body");
+        for (int i=0; i<size; i++) {
+            switch (i%3) {
+            case 0:  body.put("f"+i, "${id+"+i+"}"); break;
+            case 1:  body.put("f"+i, "${name}");     break;
+            default: body.put("f"+i, i);             break;
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Sets the variables the {@link #request(int)} template refers to.
+     * @param comparator the comparator
+     */
+    public static void variables(JsonComparator comparator) {
+        comparator.evalScript("var id=42; var name='thing'");
+    }
+}
@@ -0,0 +1,120 @@
+package com.cleo.labs.resttest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Benchmarks loading a file of {@link TestSequence}s: indexing it, and
+ * indexing and binding (parsing and compiling) every sequence, with and
+ * without the {@link PlanCache}.  Each invocation uses a new {@link Registry},
+ * since {@link TestSequence#load(URL)} loads each file only once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class LoadBenchmark {
+    /**
+     * The number of sequences in the file.
+     */
+    @Param({"10", "1000"})
+    public int sequences;
+
+    /**
+     * Whether to load through the {@link PlanCache}.
+     */
+    @Param({"false", "true"})
+    public boolean cache;
+
+    private File yaml;
+    private File directory;
+    private URL  url;
+
+    @Setup
+    public void setup() throws IOException {
+        yaml = File.createTempFile("sequences", ".yaml");
+        try (Writer out = Files.newBufferedWriter(yaml.toPath(), Charsets.UTF_8)) {
+            out.write("---\n");
+            for (int i=0; i<sequences; i++) {
+                out.write("sequence"+i+":\n"+
+                          "  description: list, get and update thing "+i+"\n"+
+                          "  steps:\n"+
+                          "  - before: var count="+(i%10+1)+"\n"+
+                          "    request:\n"+
+                          "      method: GET\n"+
+                          "      path:   ${\"/things?count=\"+count}\n"+
+                          "    response:\n"+
+                          "      status: 200\n"+
+                          "      body:\n"+
+                          "        totalResults: ${expect(actual>=count)}\n"+
+                          "        startIndex: 0\n"+
+                          "        count: ${count}\n"+
+                          "        resources: ${expect(Array.isArray(actual) && actual.length==count)}\n"+
+                          "    after: var first_id = response.body.resources[0].id\n"+
+                          "  - request:\n"+
+                          "      method: PUT\n"+
+                          "      path:   ${\"/things/\"+first_id}\n"+
+                          "      body: {id: '${first_id}', name: thing "+i+", tags: [one, two, three]}\n"+
+                          "    response:\n"+
+                          "      status: 200\n"+
+                          "      body: {id: '${first_id}', name: thing "+i+", '*': '${success}'}\n");
+            }
+        }
+        url = yaml.toURI().toURL();
+        if (cache) {
+            directory = Files.createTempDirectory("plan-cache").toFile();
+            System.setProperty(PlanCache.PROPERTY, directory.getPath());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.clearProperty(PlanCache.PROPERTY);
+        yaml.delete();
+        if (directory!=null) {
+            for (File cached : directory.listFiles()) {
+                cached.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    /*------------------------------------------------------------------------*
+     * Benchmarks.                                                            *
+     *------------------------------------------------------------------------*/
+    @Benchmark
+    public Registry<TestSequence> index() throws IOException {
+        Registry<TestSequence> registry = new Registry<>(TestSequence.class, (u,ts) -> ts.compile());
+        registry.load(url);
+        return registry;
+    }
+
+    @Benchmark
+    public int bind() throws IOException {
+        AtomicInteger steps = new AtomicInteger();
+        index().forEach((id,ts) -> steps.addAndGet(ts.getSteps().length));
+        return steps.get();
+    }
+}
@@ -0,0 +1,130 @@
+package com.cleo.labs.resttest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Charsets;
+
+/**
+ * Benchmarks producing {@link Provider} rows at large row counts, from
+ * inline {@code data}, from a JSON Lines {@code file}, and from
+ * {@code generate}d ranges and random values.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class ProviderBenchmark {
+    private static final String[] PARAMETERS = {"count", "name", "size"};
+
+    /**
+     * The number of rows.
+     */
+    @Param({"1000", "100000"})
+    public int rows;
+
+    private Provider inline;
+    private Provider file;
+    private Provider generated;
+    private File     jsonl;
+
+    @Setup
+    public void setup() throws IOException {
+        List<ObjectNode> data = new ArrayList<>(rows);
+        jsonl = File.createTempFile("provider", ".jsonl");
+        try (Writer out = Files.newBufferedWriter(jsonl.toPath(), Charsets.UTF_8)) {
+            for (int i=0; i<rows; i++) {
+                ObjectNode row = JsonNodeFactory.instance.objectNode();
+                row.put("count", i);
+                row.put("name", "name "+i);
+                row.put("size", i*1000L);
+                data.add(row);
+                out.write(row.toString());
+                out.write('\n');
+            }
+        }
+        inline = new Provider().setParameters(PARAMETERS).setData(data);
+        file   = new Provider().setParameters(PARAMETERS).setFile(jsonl.toURI().toString());
+
+        Map<String,Generator> generate = new LinkedHashMap<>();
+        generate.put("count", new Generator().setFrom(1L).setTo((long)rows/10));
+        List<JsonNode> names = new ArrayList<>();
+        for (String name : new String[] {"foo", "bar", "bat", "baz", "qux", "quux", "corge", "grault", "garply", "waldo"}) {
+            names.add(JsonNodeFactory.instance.textNode(name));
+        }
+        generate.put("name",  new Generator().setValues(names));
+        generate.put("size",  new Generator().setRandom("normal").setMean(1000.0).setStddev(100.0).setInteger(true));
+        generated = new Provider().setParameters(PARAMETERS).setGenerate(generate).setSeed(42L);
+    }
+
+    @TearDown
+    public void tearDown() {
+        jsonl.delete();
+    }
+
+    /*------------------------------------------------------------------------*
+     * Benchmarks.                                                            *
+     *------------------------------------------------------------------------*/
+    @Benchmark
+    public Object[][] inlineObjects() {
+        return inline.getObjects();
+    }
+
+    @Benchmark
+    public Object[][] fileObjects() {
+        return file.getObjects();
+    }
+
+    /**
+     * Streams the file rows without collecting them, as a TestNG
+     * {@code @DataProvider} returning {@link Provider#iterator()} would.
+     */
+    @Benchmark
+    public long fileIterator() {
+        return count(file.iterator());
+    }
+
+    @Benchmark
+    public Object[][] generatedObjects() {
+        return generated.getObjects();
+    }
+
+    @Benchmark
+    public long generatedIterator() {
+        return count(generated.iterator());
+    }
+
+    private static long count(Iterator<Object[]> rows) {
+        long count = 0;
+        while (rows.hasNext()) {
+            count += rows.next().length;
+        }
+        return count;
+    }
+}
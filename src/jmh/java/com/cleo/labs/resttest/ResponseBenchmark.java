@@ -0,0 +1,58 @@
+package com.cleo.labs.resttest;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Benchmarks decoding a JSON response into a {@link Response}: reading the
+ * status, type, headers and cookies, and parsing the body, as the
+ * {@link HttpClientTransport} does for each request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class ResponseBenchmark {
+    /**
+     * The number of leaf values in the body.
+     */
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    private byte[] content;
+
+    @Setup
+    public void setup() throws IOException {
+        content = JsonComparator.mapper.writeValueAsBytes(Fixtures.document(size));
+    }
+
+    @Benchmark
+    public JsonNode decode() throws IOException {
+        HttpResponse http = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        http.addHeader("Set-Cookie", "session=1234; Path=/");
+        http.addHeader("Cache-Control", "no-cache");
+        http.setEntity(new ByteArrayEntity(content, ContentType.APPLICATION_JSON));
+        return HttpClientTransport.toResponse(http).parseBody().getBody();
+    }
+}
@@ -0,0 +1,467 @@
+package com.cleo.labs.resttest;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+import com.cleo.labs.resttest.JsonComparator.Comparison;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+
+/**
+ * The matching rule for an array in an {@code expected} template whose first
+ * element is a directive, such as
+ * <pre>
+ * resources:
+ * - "@unordered"
+ * - {id: 1, name: one}
+ * - {id: 2, name: two}
+ * </pre>
+ * The remaining elements are matched against the actual array according to
+ * the directive, which combines any of:
+ * <ul>
+ * <li>{@code @unordered}: each element matches a distinct actual element, in
+ *     any order, and the arrays have the same size</li>
+ * <li>{@code @contains}: as for {@code @unordered}, but the actual array may
+ *     have other elements as well</li>
+ * <li>{@code @key field}: elements are paired with the actual elements having
+ *     the same value for {@code field}, and then matched (this implies
+ *     {@code @unordered} unless {@code @contains} is given)</li>
+ * </ul>
+ * Without a {@code @key}, elements free of ${scripts} are paired using a
+ * structural hash of the actual elements, projected on the fields the element
+ * constrains, so matching is roughly linear in the size of the arrays.  The
+ * most specific elements are paired first.  Elements with ${scripts} (or a
+ * ${script} key) are paired greedily with the first remaining actual element
+ * they match, so their scripts may be evaluated against several candidates.
+ * Where the greedy pairing leaves an element over, although the elements
+ * overlap so that another pairing would succeed, the pairing is completed by
+ * bipartite matching, so an array only mismatches if no pairing exists.
+ * <p/>
+ * An element left without a match is reported at its index in the template
+ * (not counting the directive) against a missing node, and an unmatched
+ * actual element is reported at its index against a missing node.
+ */
+public class ArrayDirective {
+    public static final String UNORDERED = "@unordered";
+    public static final String CONTAINS  = "@contains";
+    public static final String KEY       = "@key";
+
+    private static final Pattern DIRECTIVE = Pattern.compile(
+        "\\s*(@unordered|@contains|@key\\s+\\S+)(\\s+(@unordered|@contains|@key\\s+\\S+))*\\s*");
+
+    private static final int MISSING  = 0x27d4eb2d;
+    private static final int MISMATCH = 0x165667b1;
+
+    private final boolean    contains;
+    private final String     key;
+    private final JsonNode[] elements;
+    private final String[]   shapes;
+    private final int[]      hashes;
+    private final Integer[]  literals;
+
+    /**
+     * Matches the {@code i}th element of a template against an actual node,
+     * whose index is on the trail, adding any mismatches to {@code report}.
+     */
+    public interface ElementMatcher {
+        void match(int i, JsonNode actual, List<Comparison> report);
+    }
+
+    /*------------------------------------------------------------------------*
+     * Parsing.                                                               *
+     *------------------------------------------------------------------------*/
+    /**
+     * @param expected a template node
+     * @return {@code true} if {@code expected} is an array starting with a directive
+     */
+    public static boolean isDirective(JsonNode expected) {
+        return expected.isArray() && expected.size()>0 && expected.get(0).isTextual() &&
+               DIRECTIVE.matcher(expected.get(0).asText()).matches();
+    }
+
+    /**
+     * Parses the directive of an array template.
+     * @param expected a template node
+     * @return the directive, or {@code null} if {@code expected} has none
+     */
+    public static ArrayDirective parse(JsonNode expected) {
+        return isDirective(expected) ? new ArrayDirective(expected) : null;
+    }
+
+    private ArrayDirective(JsonNode expected) {
+        String[] tokens = expected.get(0).asText().trim().split("\\s+");
+        boolean contains = false;
+        String  key      = null;
+        for (int t=0; t<tokens.length; t++) {
+            if (tokens[t].equals(CONTAINS)) {
+                contains = true;
+            } else if (tokens[t].equals(KEY)) {
+                key = tokens[++t];
+            }
+        }
+        this.contains = contains;
+        this.key      = key;
+        elements = new JsonNode[expected.size()-1];
+        shapes   = new String[elements.length];
+        hashes   = new int[elements.length];
+        List<Integer> literal = new ArrayList<>();
+        for (int i=0; i<elements.length; i++) {
+            elements[i] = expected.get(i+1);
+            if (isLiteral(elements[i])) {
+                StringBuilder shape = new StringBuilder();
+                shape(elements[i], shape);
+                shapes[i] = shape.toString();
+                hashes[i] = hash(elements[i], elements[i]);
+                literal.add(i);
+            }
+        }
+        literals = literal.toArray(new Integer[literal.size()]);
+        // the most specific elements first, otherwise in order
+        Arrays.sort(literals, Comparator.comparing((Integer i)->-shapes[i].length()));
+    }
+
+    /**
+     * @return the elements of the template, without the directive
+     */
+    public JsonNode[] getElements() {
+        return elements;
+    }
+
+    /*------------------------------------------------------------------------*
+     * Structural hashing.                                                    *
+     *------------------------------------------------------------------------*/
+    /**
+     * @return {@code true} if {@code node} has no ${scripts}, "*" or "**"
+     * rules, or array directives, so that it matches only nodes with the
+     * same {@link #hash(JsonNode, JsonNode) hash}
+     */
+    private static boolean isLiteral(JsonNode node) {
+        if (JsonComparator.script(node)!=null || isDirective(node) ||
+            node.isObject() && (node.has("*") || node.has("**"))) {
+            return false;
+        }
+        for (JsonNode child : node) {
+            if (!isLiteral(child)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Describes the structure of a literal node, without its values.
+     */
+    private static void shape(JsonNode node, StringBuilder shape) {
+        if (node.isObject()) {
+            shape.append('{');
+            node.fields().forEachRemaining((field) -> {
+                shape.append(field.getKey()).append(':');
+                shape(field.getValue(), shape);
+                shape.append(',');
+            });
+            shape.append('}');
+        } else if (node.isArray()) {
+            shape.append('[');
+            node.forEach((element) -> {
+                shape(element, shape);
+                shape.append(',');
+            });
+            shape.append(']');
+        } else {
+            shape.append('v');
+        }
+    }
+
+    /**
+     * Hashes {@code node} projected on the structure of {@code shape}: only
+     * the fields of {@code shape} are hashed, so a literal template and any
+     * node it matches have the same hash.  Numbers are hashed as they are
+     * compared, by their {@code long} value where possible.
+     */
+    static int hash(JsonNode shape, JsonNode node) {
+        if (node==null || node.isMissingNode()) {
+            return MISSING;
+        } else if (shape.isObject()) {
+            if (!node.isObject()) {
+                return MISMATCH;
+            }
+            int h = 1;
+            for (Iterator<String> names=shape.fieldNames(); names.hasNext();) {
+                String name = names.next();
+                h = 31*h+name.hashCode();
+                h = 31*h+hash(shape.get(name), node.get(name));
+            }
+            return h;
+        } else if (shape.isArray()) {
+            if (!node.isArray() || node.size()!=shape.size()) {
+                return MISMATCH;
+            }
+            int h = 2;
+            for (int i=0; i<shape.size(); i++) {
+                h = 31*h+hash(shape.get(i), node.get(i));
+            }
+            return h;
+        } else if (node.isContainerNode()) {
+            return MISMATCH;
+        } else if (node.isNumber() && node.canConvertToLong()) {
+            return Long.hashCode(node.longValue());
+        }
+        return node.hashCode();
+    }
+
+    /**
+     * Returns a key value in the form it is compared in.
+     */
+    private static Object canonical(JsonNode value) {
+        return value.isNumber() && value.canConvertToLong() ? (Object)value.longValue() : value;
+    }
+
+    /*------------------------------------------------------------------------*
+     * Matching.                                                              *
+     *------------------------------------------------------------------------*/
+    /**
+     * Matches an actual node against the template.
+     * @param expected the template, including the directive, for reporting
+     * @param actual the actual node
+     * @param trail the path of the actual node
+     * @param matcher matches a template element against an actual element
+     * @param report the list to add mismatches to
+     */
+    public void match(JsonNode expected, JsonNode actual, Trail trail, ElementMatcher matcher, List<Comparison> report) {
+        int n = actual.isArray() ? actual.size() : -1;
+        if (contains ? n<elements.length : n!=elements.length) {
+            report.add(new Comparison(trail.toPointer(), expected, actual));
+            return;
+        }
+        Pairing pairing = new Pairing(actual, trail, matcher);
+        boolean[] done = new boolean[elements.length];
+        if (key!=null) {
+            Map<Object,Deque<Integer>> keys = new HashMap<>();
+            for (int j=0; j<n; j++) {
+                JsonNode k = actual.get(j).get(key);
+                if (k!=null && k.isValueNode()) {
+                    keys.computeIfAbsent(canonical(k), (x)->new ArrayDeque<>()).add(j);
+                }
+            }
+            for (int i=0; i<elements.length; i++) {
+                JsonNode k = elements[i].get(key);
+                if (k!=null && k.isValueNode() && JsonComparator.script(k)==null) {
+                    Deque<Integer> candidates = keys.get(canonical(k));
+                    Integer j = candidates==null ? null : candidates.poll();
+                    if (j==null) {
+                        missing(i, trail, report);
+                    } else {
+                        pairing.owner[j] = FIXED;
+                        matcher.match(i, actual.get(j), trail.push(j), report);
+                        trail.pop();
+                    }
+                    done[i] = true;
+                }
+            }
+        } else {
+            Map<String,Map<Integer,Deque<Integer>>> indexes = new HashMap<>();
+            for (int i : literals) {
+                Map<Integer,Deque<Integer>> index = indexes.computeIfAbsent(shapes[i], (s)->index(elements[i], actual));
+                Deque<Integer> candidates = index.get(hashes[i]);
+                if (candidates!=null) {
+                    pairing.pair(i, candidates.iterator());
+                }
+            }
+        }
+        // greedy pairing for the elements with ${scripts}
+        for (int i=0; i<elements.length; i++) {
+            if (!done[i] && pairing.pairOf[i]==FREE && (key!=null || shapes[i]==null)) {
+                pairing.pair(i, pairing.new Remaining());
+            }
+        }
+        // elements left over may still be paired by moving earlier pairs
+        for (int i=0; i<elements.length; i++) {
+            if (!done[i] && pairing.pairOf[i]==FREE && !pairing.augment(i)) {
+                missing(i, trail, report);
+            }
+        }
+        if (!contains) {
+            for (int j=0; j<n; j++) {
+                if (pairing.owner[j]==FREE) {
+                    report.add(new Comparison(trail.push(j).toPointer(), MissingNode.getInstance(), actual.get(j)));
+                    trail.pop();
+                }
+            }
+        }
+    }
+
+    /**
+     * Indexes the actual elements by their hash projected on {@code shape}.
+     */
+    private static Map<Integer,Deque<Integer>> index(JsonNode shape, JsonNode actual) {
+        Map<Integer,Deque<Integer>> index = new HashMap<>();
+        for (int j=0; j<actual.size(); j++) {
+            index.computeIfAbsent(hash(shape, actual.get(j)), (h)->new ArrayDeque<>()).add(j);
+        }
+        return index;
+    }
+
+    private static final int FREE  = -1;
+    private static final int FIXED = -2;
+
+    /**
+     * The pairing of template elements with actual elements under
+     * construction.  Elements are first paired greedily, with the first
+     * free candidate they match.  Greedy pairing can leave an element
+     * unpaired although a complete pairing exists (when elements overlap,
+     * e.g. {@code {a: 1}} and {@code {a: 1, b: 2}}), so an element left
+     * over is then paired along an augmenting path, as in bipartite
+     * matching, which moves earlier pairs to other candidates they match.
+     */
+    private class Pairing {
+        private final JsonNode           actual;
+        private final Trail              trail;
+        private final ElementMatcher     matcher;
+        private final int[]              owner;   // element paired with each actual element, FREE or FIXED
+        private final int[]              pairOf;  // actual element paired with each element, or FREE
+        private final Map<Long,Boolean>  matches    = new HashMap<>();
+        private final Map<Integer,int[]> candidates = new HashMap<>();
+
+        private Pairing(JsonNode actual, Trail trail, ElementMatcher matcher) {
+            this.actual  = actual;
+            this.trail   = trail;
+            this.matcher = matcher;
+            this.owner   = new int[actual.size()];
+            this.pairOf  = new int[elements.length];
+            Arrays.fill(owner, FREE);
+            Arrays.fill(pairOf, FREE);
+        }
+
+        /**
+         * @return {@code true} if element {@code i} matches actual element
+         * {@code j}, evaluating any scripts only once per pair
+         */
+        private boolean matches(int i, int j) {
+            return matches.computeIfAbsent((long)i*owner.length+j, (x) -> {
+                List<Comparison> scratch = new ArrayList<>();
+                matcher.match(i, actual.get(j), trail.push(j), scratch);
+                trail.pop();
+                return scratch.isEmpty();
+            });
+        }
+
+        private void pair(int i, int j) {
+            owner[j]  = i;
+            pairOf[i] = j;
+        }
+
+        /**
+         * Pairs element {@code i} with the first free candidate it matches,
+         * dropping taken candidates along the way.
+         */
+        private boolean pair(int i, Iterator<Integer> candidates) {
+            while (candidates.hasNext()) {
+                int j = candidates.next();
+                if (owner[j]!=FREE) {
+                    candidates.remove();
+                    continue;
+                }
+                if (matches(i, j)) {
+                    pair(i, j);
+                    candidates.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the actual elements element {@code i} could match: those
+         * with its hash for a literal element, otherwise all of them
+         */
+        private int[] candidates(int i) {
+            return candidates.computeIfAbsent(i, (x) -> {
+                if (key==null && shapes[i]!=null) {
+                    return IntStream.range(0, owner.length)
+                                    .filter((j)->hash(elements[i], actual.get(j))==hashes[i])
+                                    .toArray();
+                }
+                return IntStream.range(0, owner.length).toArray();
+            });
+        }
+
+        /**
+         * Pairs the unpaired element {@code root} by a breadth-first search
+         * for an augmenting path: a chain of paired elements, each of which
+         * can move to the actual element paired with the next, ending at a
+         * free actual element.
+         * @return {@code true} if {@code root} was paired
+         */
+        private boolean augment(int root) {
+            int[]          via   = new int[owner.length]; // the element that reached each actual element
+            boolean[]      seen  = new boolean[owner.length];
+            Deque<Integer> queue = new ArrayDeque<>();
+            queue.add(root);
+            while (!queue.isEmpty()) {
+                int i = queue.poll();
+                for (int j : candidates(i)) {
+                    if (seen[j] || owner[j]==FIXED || !matches(i, j)) {
+                        continue;
+                    }
+                    seen[j] = true;
+                    via[j]  = i;
+                    if (owner[j]==FREE) {
+                        // shift each element on the path to the actual element it reached
+                        for (int k=j; k!=FREE;) {
+                            int e    = via[k];
+                            int next = pairOf[e];
+                            pair(e, k);
+                            k = next;
+                        }
+                        return true;
+                    }
+                    queue.add(owner[j]);
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Iterates over the free actual indexes.
+         */
+        private class Remaining implements Iterator<Integer> {
+            private int next = -1;
+            private Remaining() {
+                advance();
+            }
+            private void advance() {
+                do {
+                    next++;
+                } while (next<owner.length && owner[next]!=FREE);
+            }
+            @Override
+            public boolean hasNext() {
+                return next<owner.length;
+            }
+            @Override
+            public Integer next() {
+                int result = next;
+                advance();
+                return result;
+            }
+            @Override
+            public void remove() {
+                // taken indexes are skipped anyway
+            }
+        }
+    }
+
+    private void missing(int i, Trail trail, List<Comparison> report) {
+        report.add(new Comparison(trail.push(i).toPointer(), elements[i], MissingNode.getInstance()));
+        trail.pop();
+    }
+}
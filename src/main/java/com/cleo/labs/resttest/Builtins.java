@@ -0,0 +1,410 @@
+package com.cleo.labs.resttest;
+
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.cleo.labs.resttest.JsonComparator.Result;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * The ${scripts} that are matched natively in Java, without binding
+ * {@code actual} and entering the script engine.  A script is recognized
+ * by its text, once, and anything else is left to the engine.  The
+ * vocabulary is:
+ * <ul>
+ * <li>{@code success} and {@code failure}</li>
+ * <li>a variable reference, such as {@code count}, set to a string, number,
+ *     boolean or JSON value, or {@code actual} itself</li>
+ * <li>{@code type('number')}: the JSON type of {@code actual}, one of
+ *     {@code string}, {@code number}, {@code boolean}, {@code object},
+ *     {@code array}, {@code null} or {@code undefined} (or several separated
+ *     by {@code |})</li>
+ * <li>{@code length(n)} or {@code length(min,max)}: the length of a string
+ *     or array</li>
+ * <li>{@code range(min)} or {@code range(min,max)}: a number within bounds</li>
+ * <li>{@code matches('regex')}: a string containing a match for a regular
+ *     expression (without backslashes, which JavaScript strings would eat)</li>
+ * <li>{@code isodate()}: a string holding an ISO 8601 date or date-time</li>
+ * <li>the common forms {@code expect(typeof actual=='number')},
+ *     {@code expect(Array.isArray(actual))}, {@code expect(actual.length>=3)},
+ *     {@code expect(actual>=1 && actual<=10)} and
+ *     {@code expect(/regex/.test(actual))}</li>
+ * </ul>
+ * The functions are also defined in the script prelude, with the same
+ * meaning, so templates behave alike however they are evaluated.  Where a
+ * native form can not decide the same way the script would, for example
+ * {@code actual>=1} on a string, it defers to the script engine.
+ * <p/>
+ * Regular expressions are translated to Java with JavaScript semantics
+ * ({@code $} only at the end of the input, {@code .} and {@code \s} as in
+ * JavaScript, and so on), and any regular expression using syntax that
+ * the two read differently, or that only one of them accepts (such as
+ * possessive quantifiers, lookbehind, nested character classes or
+ * {@code \p}), is left to the script engine.
+ */
+public class Builtins {
+    /**
+     * A natively evaluated script.
+     */
+    public interface Builtin {
+        /**
+         * Evaluates the script against {@code actual}.
+         * @param comparator the comparator, for variable references
+         * @param actual the actual node, or {@code null} or missing for undefined
+         * @return the result, as from {@link JsonComparator#evalScript(String)},
+         * or {@code null} to evaluate the script in the engine instead
+         */
+        Object eval(JsonComparator comparator, JsonNode actual);
+    }
+
+    private static final Builtin                NONE    = (comparator,actual) -> null;
+    private static final String                 ACTUAL  = "actual";
+    private static final Cache<String,Builtin>  parsed  = CacheBuilder.newBuilder().maximumSize(10000).build();
+
+    private static final String  NUMBER    = "(-?\\d+(?:\\.\\d+)?(?:[eE][-+]?\\d+)?)";
+    private static final String  STRING    = "(?:'([^'\\\\]*)'|\"([^\"\\\\]*)\")";
+    private static final String  OP        = "(===?|!==?|<=?|>=?)";
+    private static final Pattern VARIABLE  = Pattern.compile("[A-Za-z_$][\\w$]*");
+    private static final Pattern TYPE      = Pattern.compile("type\\(\\s*"+STRING+"\\s*\\)");
+    private static final Pattern LENGTH    = Pattern.compile("length\\(\\s*"+NUMBER+"\\s*(?:,\\s*"+NUMBER+"\\s*)?\\)");
+    private static final Pattern RANGE     = Pattern.compile("range\\(\\s*"+NUMBER+"\\s*(?:,\\s*"+NUMBER+"\\s*)?\\)");
+    private static final Pattern MATCHES   = Pattern.compile("matches\\(\\s*"+STRING+"\\s*\\)");
+    private static final Pattern ISODATE   = Pattern.compile("isodate\\(\\s*\\)");
+    private static final Pattern TYPEOF    = Pattern.compile("expect\\(\\s*typeof\\s+actual\\s*===?\\s*"+STRING+"\\s*\\)");
+    private static final Pattern ISARRAY   = Pattern.compile("expect\\(\\s*Array\\.isArray\\(\\s*actual\\s*\\)\\s*\\)");
+    private static final Pattern SIZE      = Pattern.compile("expect\\(\\s*actual\\.length\\s*"+OP+"\\s*"+NUMBER+"\\s*\\)");
+    private static final Pattern COMPARE   = Pattern.compile("expect\\(\\s*actual\\s*"+OP+"\\s*"+NUMBER+"\\s*(?:&&\\s*actual\\s*"+OP+"\\s*"+NUMBER+"\\s*)?\\)");
+    private static final Pattern TEST      = Pattern.compile("expect\\(\\s*/((?:[^/\\\\]|\\\\.)+)/([gim]*)\\.test\\(\\s*actual\\s*\\)\\s*\\)");
+    private static final Pattern REPEAT    = Pattern.compile("\\{\\d+(?:,\\d*)?\\}");
+    private static final Pattern HEX       = Pattern.compile("x\\p{XDigit}{2}|u\\p{XDigit}{4}|c[A-Za-z]");
+
+    /**
+     * The JavaScript line terminators and white space, which differ from
+     * Java's.
+     */
+    private static final String  LINE      = "\\n\\r\\u2028\\u2029";
+    private static final String  SPACE     = "\\t\\n\\x0B\\f\\r \\u00a0\\u1680\\u2000-\\u200a\\u2028\\u2029\\u202f\\u205f\\u3000\\ufeff";
+
+    /**
+     * The ISO 8601 date and date-time forms accepted by {@code isodate()},
+     * as in the prelude.
+     */
+    static final String ISODATE_REGEX = "^\\d{4}-\\d{2}-\\d{2}(T\\d{2}:\\d{2}(:\\d{2}(\\.\\d+)?)?(Z|[+-]\\d{2}(:?\\d{2})?)?)?$";
+    private static final Pattern ISODATE_PATTERN = Pattern.compile(ISODATE_REGEX);
+
+    /**
+     * The prelude functions, matching the native vocabulary.
+     */
+    static final String PRELUDE =
+        "function type(t) { var u=actual===null ? 'null' : Array.isArray(actual) ? 'array' : typeof actual; return expect(t.split('|').indexOf(u)>=0); }"+
+        "function length(min,max) { var n=typeof actual=='string' || Array.isArray(actual) ? actual.length : -1; return expect(max===undefined ? n==min : n>=min && n<=max); }"+
+        "function range(min,max) { return expect(typeof actual=='number' && actual>=min && (max===undefined || actual<=max)); }"+
+        "function matches(re) { return expect(typeof actual=='string' && new RegExp(re).test(actual)); }"+
+        "function isodate() { return expect(typeof actual=='string' && /"+ISODATE_REGEX+"/.test(actual)); }";
+
+    /*------------------------------------------------------------------------*
+     * Parsing.                                                               *
+     *------------------------------------------------------------------------*/
+    /**
+     * Returns the native form of a script, if it has one.
+     * @param script the script (without the ${})
+     * @return the builtin, or {@code null} if the script must be evaluated
+     * by the engine
+     */
+    public static Builtin parse(String script) {
+        try {
+            Builtin builtin = parsed.get(script, () -> {
+                Builtin b = compile(script.trim());
+                return b==null ? NONE : b;
+            });
+            return builtin==NONE ? null : builtin;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the native form of a script if it is a variable reference,
+     * for templates that are evaluated without an {@code actual} node.
+     * @param script the script (without the ${})
+     * @return the builtin, or {@code null} if the script is not a variable
+     * reference
+     */
+    public static Builtin reference(String script) {
+        String name = script.trim();
+        return VARIABLE.matcher(name).matches() && !name.equals(ACTUAL) ? variable(name) : null;
+    }
+
+    private static Builtin compile(String script) {
+        Matcher m;
+        if (script.equals("success")) {
+            return (comparator,actual) -> Result.SUCCESS;
+        } else if (script.equals("failure")) {
+            return (comparator,actual) -> Result.FAILURE;
+        } else if (script.equals(ACTUAL)) {
+            return (comparator,actual) -> actual==null || actual.isMissingNode() ? null : actual;
+        } else if (VARIABLE.matcher(script).matches()) {
+            return variable(script);
+        } else if ((m = TYPE.matcher(script)).matches()) {
+            String[] types = string(m, 1).split("\\|");
+            return (comparator,actual) -> {
+                String type = type(actual);
+                if (type==null) {
+                    return null;
+                }
+                for (String t : types) {
+                    if (t.equals(type)) {
+                        return Result.SUCCESS;
+                    }
+                }
+                return Result.FAILURE;
+            };
+        } else if ((m = LENGTH.matcher(script)).matches()) {
+            double min = Double.parseDouble(m.group(1));
+            double max = m.group(2)!=null ? Double.parseDouble(m.group(2)) : min;
+            return (comparator,actual) -> {
+                int n = length(actual);
+                return result(n>=min && n<=max);
+            };
+        } else if ((m = RANGE.matcher(script)).matches()) {
+            double min = Double.parseDouble(m.group(1));
+            double max = m.group(2)!=null ? Double.parseDouble(m.group(2)) : Double.POSITIVE_INFINITY;
+            return (comparator,actual) -> result(actual!=null && actual.isNumber() &&
+                                                 actual.doubleValue()>=min && actual.doubleValue()<=max);
+        } else if ((m = MATCHES.matcher(script)).matches()) {
+            Pattern regex = regex(string(m, 1), false, false);
+            if (regex==null) {
+                return null;
+            }
+            return (comparator,actual) -> result(actual!=null && actual.isTextual() &&
+                                                 regex.matcher(actual.textValue()).find());
+        } else if (ISODATE.matcher(script).matches()) {
+            return (comparator,actual) -> result(actual!=null && actual.isTextual() &&
+                                                 ISODATE_PATTERN.matcher(actual.textValue()).matches());
+        } else if ((m = TYPEOF.matcher(script)).matches()) {
+            String expected = string(m, 1);
+            return (comparator,actual) -> {
+                String type = type(actual);
+                if (type==null) {
+                    return null;
+                }
+                // typeof does not tell arrays and null from objects
+                return result(expected.equals(type.equals("array") || type.equals("null") ? "object" : type));
+            };
+        } else if (ISARRAY.matcher(script).matches()) {
+            return (comparator,actual) -> result(actual!=null && actual.isArray());
+        } else if ((m = SIZE.matcher(script)).matches()) {
+            String op = m.group(1);
+            double n  = Double.parseDouble(m.group(2));
+            return (comparator,actual) -> {
+                int length = length(actual);
+                return length<0 ? null : result(compare(length, op, n));
+            };
+        } else if ((m = COMPARE.matcher(script)).matches()) {
+            String op1 = m.group(1);
+            double n1  = Double.parseDouble(m.group(2));
+            String op2 = m.group(3);
+            double n2  = op2!=null ? Double.parseDouble(m.group(4)) : 0;
+            return (comparator,actual) -> {
+                if (actual==null || !actual.isNumber()) {
+                    return null;
+                }
+                double value = actual.doubleValue();
+                return result(compare(value, op1, n1) && (op2==null || compare(value, op2, n2)));
+            };
+        } else if ((m = TEST.matcher(script)).matches()) {
+            Pattern regex = regex(m.group(1), m.group(2).contains("i"), m.group(2).contains("m"));
+            if (regex==null) {
+                return null;
+            }
+            return (comparator,actual) -> actual!=null && actual.isTextual()
+                                        ? result(regex.matcher(actual.textValue()).find())
+                                        : null;
+        }
+        return null;
+    }
+
+    private static Builtin variable(String name) {
+        return (comparator,actual) -> {
+            Object value = comparator.lookup(name);
+            if (value instanceof String || value instanceof Number || value instanceof Boolean ||
+                value instanceof Result || value instanceof JsonNode) {
+                return value;
+            }
+            return null; // undefined, null, or a script object
+        };
+    }
+
+    /*------------------------------------------------------------------------*
+     * Helpers.                                                               *
+     *------------------------------------------------------------------------*/
+    private static String string(Matcher m, int group) {
+        return m.group(group)!=null ? m.group(group) : m.group(group+1);
+    }
+
+    /**
+     * @return the compiled regular expression, or {@code null} if it can
+     * not be translated, or Java does not accept the translation
+     */
+    private static Pattern regex(String regex, boolean ignoreCase, boolean multiline) {
+        String java = translate(regex, multiline);
+        if (java==null) {
+            return null;
+        }
+        try {
+            return Pattern.compile(java, ignoreCase ? Pattern.CASE_INSENSITIVE|Pattern.UNICODE_CASE : 0);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Translates a JavaScript regular expression to a Java one that
+     * matches the same strings.
+     * @param regex the JavaScript regular expression
+     * @param multiline whether the {@code m} flag is set
+     * @return the Java regular expression, or {@code null} if the
+     * expression uses syntax that is not translated
+     */
+    static String translate(String regex, boolean multiline) {
+        StringBuilder java = new StringBuilder();
+        boolean inClass = false;
+        boolean quantified = false; // the previous token was a quantifier
+        for (int i=0; i<regex.length(); i++) {
+            char c = regex.charAt(i);
+            boolean quantifier = false;
+            if (c=='\\') {
+                if (++i>=regex.length()) {
+                    return null;
+                }
+                char e = regex.charAt(i);
+                Matcher hex = HEX.matcher(regex).region(i, regex.length());
+                if ("dDwWtnrf".indexOf(e)>=0 || !Character.isLetterOrDigit(e)) {
+                    java.append('\\').append(e);
+                } else if ((e=='b' || e=='B') && !inClass) {
+                    java.append('\\').append(e);
+                } else if (e=='s') {
+                    java.append(inClass ? SPACE : "["+SPACE+"]");
+                } else if (e=='S' && !inClass) {
+                    java.append("[^"+SPACE+"]");
+                } else if (hex.lookingAt()) {
+                    java.append('\\').append(hex.group());
+                    i = hex.end()-1;
+                } else {
+                    return null; // backreferences, octal, \v, and letters Java reads otherwise
+                }
+            } else if (inClass) {
+                if (c=='[' || c=='&' && regex.startsWith("&", i+1)) {
+                    return null; // Java nests and intersects classes
+                }
+                inClass = c!=']';
+                java.append(c);
+            } else if (c=='[') {
+                inClass = true;
+                java.append(c);
+                if (regex.startsWith("^", i+1)) {
+                    java.append(regex.charAt(++i));
+                }
+                if (regex.startsWith("]", i+1)) {
+                    return null; // [] and [^], which Java reads as a literal ]
+                }
+            } else if (c=='(') {
+                if (regex.startsWith("?", i+1) && !regex.startsWith("?:", i+1) &&
+                    !regex.startsWith("?=", i+1) && !regex.startsWith("?!", i+1)) {
+                    return null; // lookbehind, named and atomic groups, and flags
+                }
+                java.append(c);
+            } else if (c=='.') {
+                java.append("[^"+LINE+"]");
+            } else if (c=='^') {
+                java.append(multiline ? "(?:^|(?<=["+LINE+"]))" : "^");
+            } else if (c=='$') {
+                java.append(multiline ? "(?=["+LINE+"]|\\z)" : "\\z");
+            } else if (c=='+' && quantified) {
+                return null; // possessive in Java, an error in JavaScript
+            } else if (c=='?' && quantified) {
+                java.append(c); // lazy
+            } else if (c=='*' || c=='+' || c=='?') {
+                java.append(c);
+                quantifier = true;
+            } else if (c=='{') {
+                Matcher repeat = REPEAT.matcher(regex).region(i, regex.length());
+                if (repeat.lookingAt()) {
+                    java.append(repeat.group());
+                    i = repeat.end()-1;
+                    quantifier = true;
+                } else {
+                    java.append("\\{"); // a literal brace
+                }
+            } else {
+                java.append(c);
+            }
+            quantified = quantifier;
+        }
+        return inClass ? null : java.toString();
+    }
+
+    private static Result result(boolean b) {
+        return b ? Result.SUCCESS : Result.FAILURE;
+    }
+
+    /**
+     * @return the type of a node as {@code type()} sees it, or {@code null}
+     * for nodes that have no script equivalent (e.g. binary)
+     */
+    private static String type(JsonNode node) {
+        if (node==null || node.isMissingNode()) {
+            return "undefined";
+        } else if (node.isNull()) {
+            return "null";
+        } else if (node.isArray()) {
+            return "array";
+        } else if (node.isObject()) {
+            return "object";
+        } else if (node.isNumber()) {
+            return "number";
+        } else if (node.isTextual()) {
+            return "string";
+        } else if (node.isBoolean()) {
+            return "boolean";
+        }
+        return null;
+    }
+
+    /**
+     * @return the length of a string or array node, or {@code -1}
+     */
+    private static int length(JsonNode node) {
+        if (node==null) {
+            return -1;
+        } else if (node.isTextual()) {
+            return node.textValue().length();
+        } else if (node.isArray()) {
+            return node.size();
+        }
+        return -1;
+    }
+
+    private static boolean compare(double x, String op, double y) {
+        switch (op) {
+        case "==":
+        case "===":
+            return x==y;
+        case "!=":
+        case "!==":
+            return x!=y;
+        case "<":
+            return x<y;
+        case "<=":
+            return x<=y;
+        case ">":
+            return x>y;
+        default:
+            return x>=y;
+        }
+    }
+}
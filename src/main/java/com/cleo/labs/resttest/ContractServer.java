@@ -0,0 +1,258 @@
+package com.cleo.labs.resttest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+/**
+ * A {@link StubServer} that serves the contracts described by the steps of
+ * {@link TestSequence}s: each step with a {@code request} defines a route on
+ * its {@code method} and {@code path}, which answers with a response
+ * synthesized from the step's {@code response} template.
+ * <p/>
+ * The synthesized response keeps the literal parts of the template: the
+ * {@code status} (200 if it is a ${script}), {@code type}, {@code headers},
+ * and the {@code body}, in which ${scripts} become {@code null} and the
+ * "*" and "**" extra field rules and {@link ArrayDirective}s are dropped.
+ * It therefore satisfies the literal parts of the template, though not
+ * necessarily its scripts.
+ * <p/>
+ * A literal {@code path} is matched exactly (ignoring any query).  A path
+ * computed by a ${script} that starts with a string literal, such as
+ * <code>${"/certs/"+id}</code>, matches any path with that prefix, and any
+ * other ${script} path matches any path for its method.  When several steps
+ * define the same route, the first one added wins.
+ * <p/>
+ * Object bodies may be padded with a {@code _padding} field to make each
+ * response at least {@code padding} bytes long, to test with larger payloads.
+ * Responses are synthesized once, when the routes are added.
+ */
+public class ContractServer extends StubServer {
+    private static final Pattern PREFIX = Pattern.compile("^\\s*([\"'])([^\"'\\\\]*)\\1\\s*\\+");
+
+    private final Map<String,Route> exact    = new HashMap<>();
+    private final List<Route>       prefixed = new ArrayList<>();
+    private int                     padding  = 0;
+
+    /**
+     * A route and its synthesized response.
+     */
+    private static class Route {
+        private final String   method;
+        private final String   prefix;
+        private final Response response;
+        private byte[]         content;
+        private Route(String method, String prefix, Response response) {
+            this.method   = method;
+            this.prefix   = prefix;
+            this.response = response;
+        }
+    }
+
+    /*------------------------------------------------------------------------*
+     * Adding routes.                                                         *
+     *------------------------------------------------------------------------*/
+    /**
+     * Adds the routes defined by the steps of {@code sequence}.
+     * @param sequence the sequence
+     * @return this
+     */
+    public ContractServer add(TestSequence sequence) {
+        if (sequence.getSteps()!=null) {
+            for (TestStep step : sequence.getSteps()) {
+                add(step);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Adds the routes defined by all the sequences loaded so far
+     * (see {@link TestSequence#load(java.net.URL)}).
+     * @return this
+     */
+    public ContractServer addAll() {
+        TestSequence.forEach((id,sequence) -> add(sequence));
+        return this;
+    }
+
+    /**
+     * Adds the route defined by {@code step}, if it has a {@code request}.
+     * @param step the step
+     * @return this
+     */
+    public ContractServer add(TestStep step) {
+        JsonNode request = step.getRequest();
+        if (request==null) {
+            return this;
+        }
+        String method = request.path("method").asText("GET").toUpperCase();
+        JsonNode path = request.path("path");
+        String script = JsonComparator.script(path);
+        Route route;
+        if (script==null) {
+            route = new Route(method, null, synthesize(step.getResponse()));
+            exact.putIfAbsent(method+" "+normalize(path.asText("")), route);
+        } else {
+            Matcher m = PREFIX.matcher(script);
+            route = new Route(method, normalize(m.find() ? m.group(2) : ""), synthesize(step.getResponse()));
+            prefixed.add(route);
+            // longest prefix first, and otherwise in the order added
+            prefixed.sort(Comparator.comparing((Route r)->-r.prefix.length()));
+        }
+        route.content = content(route.response);
+        return this;
+    }
+
+    /**
+     * Reduces a path (or absolute URI) to an absolute path without a query.
+     */
+    private static String normalize(String path) {
+        if (path.matches("(?i)https?:.*")) {
+            path = URI.create(path).getRawPath();
+        }
+        path = strip(path);
+        return path.startsWith("/") ? path : "/"+path;
+    }
+
+    private static String strip(String uri) {
+        int query = uri.indexOf('?');
+        return query<0 ? uri : uri.substring(0, query);
+    }
+
+    /*------------------------------------------------------------------------*
+     * Synthesizing responses.                                                *
+     *------------------------------------------------------------------------*/
+    private static Response synthesize(JsonNode template) {
+        Response response = new Response().setStatus(200);
+        if (template==null) {
+            return response;
+        }
+        JsonNode status = template.path("status");
+        if (status.canConvertToInt()) {
+            response.setStatus(status.asInt());
+        }
+        if (template.path("type").isTextual() && JsonComparator.script(template.get("type"))==null) {
+            response.setType(template.get("type").asText());
+        }
+        template.path("headers").fields().forEachRemaining((header) -> {
+            if (header.getValue().isValueNode() && JsonComparator.script(header.getValue())==null) {
+                response.setHeader(header.getKey(), header.getValue().asText());
+            }
+        });
+        if (template.has("body")) {
+            response.setBody(literal(template.get("body")));
+        }
+        return response;
+    }
+
+    /**
+     * Returns the literal parts of a template, with ${scripts} as {@code null}.
+     */
+    private static JsonNode literal(JsonNode template) {
+        if (JsonComparator.script(template)!=null) {
+            return NullNode.getInstance();
+        } else if (template.isArray()) {
+            ArrayNode array = JsonNodeFactory.instance.arrayNode();
+            template.forEach((element)->array.add(literal(element)));
+            if (ArrayDirective.isDirective(template)) {
+                array.remove(0);
+            }
+            return array;
+        } else if (template.isObject()) {
+            ObjectNode object = JsonNodeFactory.instance.objectNode();
+            for (Iterator<Map.Entry<String,JsonNode>> i=template.fields(); i.hasNext();) {
+                Map.Entry<String,JsonNode> field = i.next();
+                if (!field.getKey().equals("*") && !field.getKey().equals("**")) {
+                    object.set(field.getKey(), literal(field.getValue()));
+                }
+            }
+            return object;
+        }
+        return template;
+    }
+
+    private byte[] content(Response response) {
+        JsonNode body = response.getBody();
+        if (body==null || body.isNull()) {
+            return new byte[0];
+        }
+        try {
+            if (body.isObject() && padding>0) {
+                int size = JsonComparator.mapper.writeValueAsBytes(body).length;
+                if (size<padding) {
+                    ObjectNode padded = ((ObjectNode)body).deepCopy();
+                    // allow for the ,"_padding":"" around the padding itself
+                    padded.put("_padding", Strings.repeat("x", Math.max(0, padding-size-14)));
+                    body = padded;
+                }
+            }
+            return body.isTextual() ? body.asText().getBytes(Charsets.UTF_8)
+                                    : JsonComparator.mapper.writeValueAsBytes(body);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /*------------------------------------------------------------------------*
+     * Serving.                                                               *
+     *------------------------------------------------------------------------*/
+    @Override
+    protected Response respond(String method, String uri, byte[] body) {
+        String path = strip(uri);
+        Route route = exact.get(method+" "+path);
+        if (route==null) {
+            for (Route r : prefixed) {
+                if (r.method.equals(method) && path.startsWith(r.prefix)) {
+                    route = r;
+                    break;
+                }
+            }
+        }
+        if (route==null) {
+            return new Response().setStatus(404)
+                                 .setType("text/plain")
+                                 .setBody(JsonNodeFactory.instance.textNode("no contract for "+method+" "+uri));
+        }
+        return new Response().setStatus(route.response.getStatus())
+                             .setType(route.response.getType())
+                             .setHeaders(route.response.getHeaders())
+                             .setContent(new ByteArrayInputStream(route.content));
+    }
+
+    /*------------------------------------------------------------------------*
+     * Generated setter/getters (edited for fluency)                          *
+     *------------------------------------------------------------------------*/
+    /**
+     * @return the minimum size of object bodies in bytes
+     */
+    public int getPadding() {
+        return padding;
+    }
+    /**
+     * Sets the minimum size of object bodies.  Routes that are already added
+     * are not affected, so set this first.
+     * @param padding the minimum size of object bodies in bytes
+     * @return this
+     */
+    public ContractServer setPadding(int padding) {
+        this.padding = padding;
+        return this;
+    }
+}
@@ -0,0 +1,250 @@
+package com.cleo.labs.resttest;
+
+import java.util.List;
+import java.util.Random;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+/**
+ * Generates the values of one parameter of a {@link Provider} dataset.
+ * A generator is one of:
+ * <ul>
+ * <li>a range of integers, {@code from} (default 0) {@code to} (inclusive)
+ *     by {@code step} (default 1)</li>
+ * <li>a list of {@code values}</li>
+ * <li>a {@code random} value with a {@code uniform} (between {@code min}
+ *     and {@code max}, default 0 and 1), {@code normal} (with {@code mean}
+ *     and {@code stddev}, default 0 and 1, clamped to {@code min} and
+ *     {@code max} if set) or {@code exponential} (with {@code mean},
+ *     default 1) distribution, rounded to a whole number if {@code integer}
+ *     is {@code true}</li>
+ * </ul>
+ * Ranges and value lists have a {@link #size()} and are enumerated by index,
+ * so the provider can combine them into a cartesian product without storing
+ * it.  Random values are drawn from a {@link Random} seeded for each row.
+ */
+@JsonInclude(Include.NON_NULL)
+public class Generator {
+    private Long           from    = null;
+    private Long           to      = null;
+    private Long           step    = null;
+    private List<JsonNode> values  = null;
+    private String         random  = null;
+    private Double         min     = null;
+    private Double         max     = null;
+    private Double         mean    = null;
+    private Double         stddev  = null;
+    private Boolean        integer = null;
+
+    /*------------------------------------------------------------------------*
+     * Generating values.                                                     *
+     *------------------------------------------------------------------------*/
+    /**
+     * Returns the number of values in a range or value list.
+     * @return the number of values, or {@code -1} for a {@code random} generator
+     */
+    public long size() {
+        if (random!=null) {
+            return -1;
+        } else if (values!=null) {
+            return values.size();
+        } else if (to!=null) {
+            long from = this.from==null ? 0 : this.from;
+            long step = this.step==null ? 1 : this.step;
+            if (step==0) {
+                throw new IllegalArgumentException("generator step must not be 0");
+            }
+            long size = (to-from)/step+1;
+            return size<0 ? 0 : size;
+        }
+        throw new IllegalArgumentException("generator needs one of to, values or random");
+    }
+    /**
+     * Returns the {@code index}th value of a range or value list.
+     * @param index the index, from 0 to {@link #size()}-1
+     * @return the value
+     */
+    public JsonNode get(long index) {
+        if (values!=null) {
+            return values.get((int)index);
+        }
+        long from = this.from==null ? 0 : this.from;
+        long step = this.step==null ? 1 : this.step;
+        return JsonNodeFactory.instance.numberNode(from+index*step);
+    }
+    /**
+     * Draws a random value.
+     * @param r the random number generator for the row
+     * @return the value
+     */
+    public JsonNode get(Random r) {
+        double value;
+        switch (random) {
+        case "uniform":
+            double lo = min==null ? 0 : min;
+            double hi = max==null ? 1 : max;
+            value = lo+(hi-lo)*r.nextDouble();
+            break;
+        case "normal":
+            value = (mean==null ? 0 : mean)+(stddev==null ? 1 : stddev)*r.nextGaussian();
+            if (min!=null) value = Math.max(min, value);
+            if (max!=null) value = Math.min(max, value);
+            break;
+        case "exponential":
+            value = -(mean==null ? 1 : mean)*Math.log(1-r.nextDouble());
+            break;
+        default:
+            throw new IllegalArgumentException("unknown random distribution \""+random+"\"");
+        }
+        if (integer!=null && integer) {
+            return JsonNodeFactory.instance.numberNode(Math.round(value));
+        }
+        return JsonNodeFactory.instance.numberNode(value);
+    }
+    /*------------------------------------------------------------------------*
+     * Generated setter/getters (edited for fluency)                          *
+     *------------------------------------------------------------------------*/
+    /**
+     * @return the start of the range
+     */
+    public Long getFrom() {
+        return from;
+    }
+    /**
+     * @param from the start of the range to set
+     * @return this
+     */
+    public Generator setFrom(Long from) {
+        this.from = from;
+        return this;
+    }
+    /**
+     * @return the (inclusive) end of the range
+     */
+    public Long getTo() {
+        return to;
+    }
+    /**
+     * @param to the (inclusive) end of the range to set
+     * @return this
+     */
+    public Generator setTo(Long to) {
+        this.to = to;
+        return this;
+    }
+    /**
+     * @return the step of the range
+     */
+    public Long getStep() {
+        return step;
+    }
+    /**
+     * @param step the step of the range to set
+     * @return this
+     */
+    public Generator setStep(Long step) {
+        this.step = step;
+        return this;
+    }
+    /**
+     * @return the values
+     */
+    public List<JsonNode> getValues() {
+        return values;
+    }
+    /**
+     * @param values the values to set
+     * @return this
+     */
+    public Generator setValues(List<JsonNode> values) {
+        this.values = values;
+        return this;
+    }
+    /**
+     * @return the random distribution
+     */
+    public String getRandom() {
+        return random;
+    }
+    /**
+     * @param random the random distribution to set: uniform, normal or exponential
+     * @return this
+     */
+    public Generator setRandom(String random) {
+        this.random = random;
+        return this;
+    }
+    /**
+     * @return the minimum random value
+     */
+    public Double getMin() {
+        return min;
+    }
+    /**
+     * @param min the minimum random value to set
+     * @return this
+     */
+    public Generator setMin(Double min) {
+        this.min = min;
+        return this;
+    }
+    /**
+     * @return the maximum random value
+     */
+    public Double getMax() {
+        return max;
+    }
+    /**
+     * @param max the maximum random value to set
+     * @return this
+     */
+    public Generator setMax(Double max) {
+        this.max = max;
+        return this;
+    }
+    /**
+     * @return the mean random value
+     */
+    public Double getMean() {
+        return mean;
+    }
+    /**
+     * @param mean the mean random value to set
+     * @return this
+     */
+    public Generator setMean(Double mean) {
+        this.mean = mean;
+        return this;
+    }
+    /**
+     * @return the standard deviation of normal random values
+     */
+    public Double getStddev() {
+        return stddev;
+    }
+    /**
+     * @param stddev the standard deviation of normal random values to set
+     * @return this
+     */
+    public Generator setStddev(Double stddev) {
+        this.stddev = stddev;
+        return this;
+    }
+    /**
+     * @return whether random values are rounded to whole numbers
+     */
+    public Boolean getInteger() {
+        return integer;
+    }
+    /**
+     * @param integer {@code true} to round random values to whole numbers
+     * @return this
+     */
+    public Generator setInteger(Boolean integer) {
+        this.integer = integer;
+        return this;
+    }
+}
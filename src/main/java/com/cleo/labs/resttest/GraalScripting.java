@@ -0,0 +1,280 @@
+package com.cleo.labs.resttest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import javax.script.ScriptException;
+
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Engine;
+import org.graalvm.polyglot.HostAccess;
+import org.graalvm.polyglot.PolyglotException;
+import org.graalvm.polyglot.Source;
+import org.graalvm.polyglot.Value;
+import org.graalvm.polyglot.proxy.ProxyArray;
+import org.graalvm.polyglot.proxy.ProxyObject;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * {@link Scripting} on GraalJS, which runs on current JVMs and (on GraalVM,
+ * or with the Graal compiler enabled) compiles hot scripts to machine code.
+ * Requires {@code org.graalvm.js:js} on the classpath.
+ * <p/>
+ * All contexts share one polyglot {@link Engine} and one cache of parsed
+ * {@link Source}s, so a script is parsed (and its compiled code kept) once
+ * per JVM rather than once per context, and a new context only has to
+ * evaluate the prelude.  JSON is bound as a lazy, read-only
+ * {@link ProxyObject} or {@link ProxyArray}, with the same behavior as a
+ * {@code JsonView} under Nashorn: absent members read as {@code undefined},
+ * and (with the {@code js.foreign-object-prototype} option) the views
+ * inherit the {@code Array.prototype} and {@code Object.prototype}
+ * methods.  Host access is unrestricted, as it is
+ * under Nashorn, but the Nashorn-only {@code importClass},
+ * {@code importPackage} and {@code java.*} package objects are not
+ * available: use {@code Java.type} instead.
+ */
+public class GraalScripting implements Scripting {
+    private static final Engine               engine  = Engine.create();
+    private static final Cache<String,Source> sources = CacheBuilder.newBuilder()
+                                                            .maximumSize(ScriptEnginePool.DEFAULT_SCRIPT_CACHE_SIZE*10)
+                                                            .recordStats()
+                                                            .build();
+
+    private final Context           context;
+    private final Value             globals;
+    private final Map<String,Value> prelude;
+    private final Value             undefine;
+    private final Value             undefined;
+
+    /**
+     * Creates a new context on the shared engine and evaluates the prelude.
+     * @param scriptCacheSize ignored: parsed scripts are cached per engine
+     * @throws ScriptException if the prelude fails
+     */
+    public GraalScripting(int scriptCacheSize) throws ScriptException {
+        this.context = Context.newBuilder("js")
+                              .engine(engine)
+                              .allowHostAccess(HostAccess.ALL)
+                              .allowHostClassLookup((name) -> true)
+                              .allowExperimentalOptions(true)
+                              .option("js.foreign-object-prototype", "true")
+                              .build();
+        this.globals = context.getBindings("js");
+        eval(JsonComparator.PRELUDE);
+        this.prelude = new HashMap<>();
+        for (String key : globals.getMemberKeys()) {
+            prelude.put(key, globals.getMember(key));
+        }
+        this.undefine = context.eval("js", "(function(k) { delete this[k]; if (k in this) this[k]=undefined; })");
+        this.undefined = context.eval("js", "undefined");
+    }
+
+    private static Source source(String script) throws ScriptException {
+        try {
+            return sources.get(script, () -> Source.create("js", script));
+        } catch (ExecutionException e) {
+            throw new ScriptException(e);
+        }
+    }
+
+    /*------------------------------------------------------------------------*
+     * Scripting implementation.                                              *
+     *------------------------------------------------------------------------*/
+    @Override
+    public Object eval(String script) throws ScriptException {
+        try {
+            return toJava(context.eval(source(script)));
+        } catch (PolyglotException e) {
+            throw new ScriptException(e);
+        }
+    }
+
+    @Override
+    public Object evalUncached(String script) throws ScriptException {
+        try {
+            return toJava(context.eval(Source.newBuilder("js", script, "uncached").cached(false).buildLiteral()));
+        } catch (PolyglotException e) {
+            throw new ScriptException(e);
+        }
+    }
+
+    @Override
+    public Object get(String var) {
+        return toJava(globals.getMember(var));
+    }
+
+    @Override
+    public Object raw(String var) {
+        return globals.getMember(var);
+    }
+
+    @Override
+    public void put(String var, Object value) {
+        globals.putMember(var, value);
+    }
+
+    @Override
+    public void putJson(String var, JsonNode json) {
+        if (json==null || json.isMissingNode()) {
+            try {
+                eval("var "+var+"=undefined");
+            } catch (ScriptException e) {
+                JsonComparator.logger.debug(e);
+                e.printStackTrace();
+            }
+        } else {
+            globals.putMember(var, wrap(json));
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (String key : new ArrayList<>(globals.getMemberKeys())) {
+            if (!prelude.containsKey(key)) {
+                undefine.execute(key);
+            }
+        }
+        prelude.forEach((key,value) -> {
+            if (!value.equals(globals.getMember(key))) {
+                globals.putMember(key, value);
+            }
+        });
+    }
+
+    @Override
+    public CacheStats getScriptCacheStats() {
+        return sources.stats();
+    }
+
+    @Override
+    public void close() {
+        context.close();
+    }
+
+    /*------------------------------------------------------------------------*
+     * Conversions.                                                           *
+     *------------------------------------------------------------------------*/
+    /**
+     * Converts a script value to a Java value: views back to their nodes,
+     * and script arrays and objects to {@link List}s and {@link Map}s.
+     */
+    private static Object toJava(Value value) {
+        if (value==null || value.isNull()) {
+            return null;
+        } else if (value.isProxyObject() && value.asProxyObject() instanceof View) {
+            return ((View)value.asProxyObject()).node;
+        } else if (value.isHostObject()) {
+            return value.asHostObject();
+        } else if (value.isBoolean()) {
+            return value.asBoolean();
+        } else if (value.isString()) {
+            return value.asString();
+        } else if (value.isNumber()) {
+            if (value.fitsInInt()) {
+                return value.asInt();
+            } else if (value.fitsInLong()) {
+                return value.asLong();
+            }
+            return value.asDouble();
+        } else if (value.hasArrayElements()) {
+            List<Object> list = new ArrayList<>();
+            for (long i=0; i<value.getArraySize(); i++) {
+                list.add(toJava(value.getArrayElement(i)));
+            }
+            return list;
+        } else if (value.hasMembers()) {
+            Map<String,Object> map = new LinkedHashMap<>();
+            for (String key : value.getMemberKeys()) {
+                Value member = value.getMember(key);
+                if (!member.canExecute()) {
+                    map.put(key, toJava(member));
+                }
+            }
+            return map;
+        }
+        return value.toString();
+    }
+
+    /**
+     * Converts a {@link JsonNode} to the value a script should see, as for
+     * {@code JsonView.wrap} under Nashorn.
+     */
+    private Object wrap(JsonNode node) {
+        if (node==null || node.isMissingNode()) {
+            return undefined;
+        } else if (node.isNull()) {
+            return null;
+        } else if (node.isArray()) {
+            return new ArrayView(node);
+        } else if (node.isObject()) {
+            return new ObjectView(node);
+        } else if (node.isTextual()) {
+            return node.textValue();
+        } else if (node.isBoolean()) {
+            return node.booleanValue();
+        } else if (node.isNumber()) {
+            if (node.isIntegralNumber() && node.canConvertToInt()) {
+                return node.intValue();
+            }
+            return node.doubleValue();
+        }
+        return node.asText();
+    }
+
+    private static abstract class View {
+        final JsonNode node;
+        View(JsonNode node) {
+            this.node = node;
+        }
+    }
+
+    private class ObjectView extends View implements ProxyObject {
+        ObjectView(JsonNode node) {
+            super(node);
+        }
+        @Override
+        public Object getMember(String key) {
+            return wrap(node.get(key));
+        }
+        @Override
+        public Object getMemberKeys() {
+            List<Object> keys = new ArrayList<>(node.size());
+            node.fieldNames().forEachRemaining(keys::add);
+            return ProxyArray.fromList(keys);
+        }
+        @Override
+        public boolean hasMember(String key) {
+            return node.has(key);
+        }
+        @Override
+        public void putMember(String key, Value value) {
+            throw new UnsupportedOperationException("read-only JSON: cannot set "+key);
+        }
+    }
+
+    private class ArrayView extends View implements ProxyArray {
+        ArrayView(JsonNode node) {
+            super(node);
+        }
+        @Override
+        public Object get(long index) {
+            return wrap(node.get((int)index));
+        }
+        @Override
+        public void set(long index, Value value) {
+            throw new UnsupportedOperationException("read-only JSON: cannot set ["+index+"]");
+        }
+        @Override
+        public long getSize() {
+            return node.size();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.cleo.labs.resttest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+
+/**
+ * A non-blocking {@link Transport} built on the Apache HttpAsyncClient.
+ * Requests are multiplexed over a small number of I/O reactor threads
+ * ({@code ioThreads}, by default one per processor), so thousands of
+ * requests may be in flight without a thread waiting on each one.  Use
+ * it with {@link TestSequence#runAsync(java.util.concurrent.Executor,
+ * com.fasterxml.jackson.databind.JsonNode...) TestSequence.runAsync}.
+ * <p/>
+ * Connections are pooled and kept alive, bounded by {@code maxTotal} and
+ * {@code maxPerRoute}.  Since a connection is held for each request in
+ * flight, the defaults ({@value #DEFAULT_MAX_TOTAL} in all, and
+ * {@value #DEFAULT_MAX_PER_ROUTE} per host) are much larger than those of
+ * {@link HttpClientTransport}, which are sized for a thread per request:
+ * they cap the number of requests in flight, and so the sockets open on
+ * the client and the load on the server.  Requests beyond the cap wait for
+ * a connection, in memory, for at most {@value #DEFAULT_REQUEST_TIMEOUT}
+ * milliseconds (see {@link #setRequestTimeout(int)}) before failing.
+ * Response bodies are buffered in memory by the client before the future
+ * completes.  The blocking {@link #invoke(Request)} simply waits for the
+ * future.
+ */
+public class HttpAsyncClientTransport implements Transport, Closeable {
+    private PoolingNHttpClientConnectionManager manager;
+    private CloseableHttpAsyncClient            client;
+    private RequestConfig                       config   = RequestConfig.custom()
+                                                                   .setConnectionRequestTimeout(DEFAULT_REQUEST_TIMEOUT)
+                                                                   .build();
+    private AtomicLong                          requests = new AtomicLong();
+
+    public static final int DEFAULT_MAX_TOTAL       = 4000;
+    public static final int DEFAULT_MAX_PER_ROUTE   = 2000;
+    public static final int DEFAULT_REQUEST_TIMEOUT = 60000;
+
+    /*------------------------------------------------------------------------*
+     * Constructors.                                                          *
+     *------------------------------------------------------------------------*/
+    public HttpAsyncClientTransport() throws IOReactorException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a transport with {@code ioThreads} I/O reactor threads and
+     * the default pool bounds.
+     * @param ioThreads the number of I/O threads
+     * @throws IOReactorException if the I/O reactor can not be created
+     */
+    public HttpAsyncClientTransport(int ioThreads) throws IOReactorException {
+        this(ioThreads, DEFAULT_MAX_TOTAL, DEFAULT_MAX_PER_ROUTE);
+    }
+
+    /**
+     * Creates a transport with {@code ioThreads} I/O reactor threads,
+     * allowing at most {@code maxTotal} requests in flight, and
+     * {@code maxPerRoute} to any one host.
+     * @param ioThreads the number of I/O threads
+     * @param maxTotal the maximum number of pooled connections
+     * @param maxPerRoute the default maximum number of connections per host
+     * @throws IOReactorException if the I/O reactor can not be created
+     */
+    public HttpAsyncClientTransport(int ioThreads, int maxTotal, int maxPerRoute) throws IOReactorException {
+        IOReactorConfig reactor = IOReactorConfig.custom().setIoThreadCount(ioThreads).build();
+        manager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(reactor));
+        manager.setMaxTotal(maxTotal);
+        manager.setDefaultMaxPerRoute(maxPerRoute);
+        client  = HttpAsyncClients.custom()
+                                  .setConnectionManager(manager)
+                                  .disableCookieManagement()
+                                  .build();
+        client.start();
+    }
+
+    /*------------------------------------------------------------------------*
+     * Transport.                                                             *
+     *------------------------------------------------------------------------*/
+    @Override
+    public CompletableFuture<Response> invokeAsync(Request request) {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        requests.incrementAndGet();
+        client.execute(HttpClientTransport.toHttpRequest(request, config), new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse http) {
+                try {
+                    future.complete(HttpClientTransport.toResponse(http));
+                } catch (IOException e) {
+                    future.completeExceptionally(new UncheckedIOException(e));
+                }
+            }
+            @Override
+            public void failed(Exception e) {
+                future.completeExceptionally(e);
+            }
+            @Override
+            public void cancelled() {
+                future.cancel(false);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Sends the request on the I/O reactor, as for {@link #invokeAsync(Request)}:
+     * the {@code executor} is not used.
+     */
+    @Override
+    public CompletableFuture<Response> invokeAsync(Request request, Executor executor) {
+        return invokeAsync(request);
+    }
+
+    @Override
+    public Response invoke(Request request) throws IOException {
+        try {
+            return invokeAsync(request).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            } else if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException)e.getCause()).getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Stops the I/O reactor and closes all pooled connections.
+     */
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    /*------------------------------------------------------------------------*
+     * Pool metrics.                                                          *
+     *------------------------------------------------------------------------*/
+    /**
+     * @return the number of requests sent
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+    /**
+     * @return the current leased, available and pending counts of the pool
+     */
+    public PoolStats getPoolStats() {
+        return manager.getTotalStats();
+    }
+
+    /*------------------------------------------------------------------------*
+     * Pool settings (fluent).                                                *
+     *------------------------------------------------------------------------*/
+    /**
+     * @param max the maximum number of pooled connections
+     * @return this
+     */
+    public HttpAsyncClientTransport setMaxTotal(int max) {
+        manager.setMaxTotal(max);
+        return this;
+    }
+    /**
+     * @param max the default maximum number of connections per host
+     * @return this
+     */
+    public HttpAsyncClientTransport setMaxPerRoute(int max) {
+        manager.setDefaultMaxPerRoute(max);
+        return this;
+    }
+    /**
+     * Overrides the maximum number of connections for the host of {@code url}.
+     * @param url a URL on the host, e.g. {@code http://localhost:5080}
+     * @param max the maximum number of connections to the host
+     * @return this
+     */
+    public HttpAsyncClientTransport setMaxPerHost(String url, int max) {
+        URI uri = URI.create(url);
+        manager.setMaxPerRoute(new HttpRoute(new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme())), max);
+        return this;
+    }
+    /**
+     * @param timeout the connect timeout in milliseconds
+     * @return this
+     */
+    public HttpAsyncClientTransport setConnectTimeout(int timeout) {
+        config = RequestConfig.copy(config).setConnectTimeout(timeout).build();
+        return this;
+    }
+    /**
+     * @param timeout the socket (read) timeout in milliseconds
+     * @return this
+     */
+    public HttpAsyncClientTransport setSocketTimeout(int timeout) {
+        config = RequestConfig.copy(config).setSocketTimeout(timeout).build();
+        return this;
+    }
+    /**
+     * @param timeout the timeout in milliseconds to lease a pooled connection
+     * ({@value #DEFAULT_REQUEST_TIMEOUT} by default, or {@code 0} to wait
+     * indefinitely)
+     * @return this
+     */
+    public HttpAsyncClientTransport setRequestTimeout(int timeout) {
+        config = RequestConfig.copy(config).setConnectionRequestTimeout(timeout).build();
+        return this;
+    }
+}
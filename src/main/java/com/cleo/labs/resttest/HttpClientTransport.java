@@ -0,0 +1,252 @@
+package com.cleo.labs.resttest;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import com.google.common.base.Charsets;
+
+/**
+ * A {@link Transport} that sends requests through a single Apache HttpClient
+ * with a pool of keep-alive connections, so that repeated requests to the
+ * same host (as in a {@link LoadRunner} or a data-driven suite) reuse open
+ * connections instead of paying for a new TCP (and TLS) handshake each time.
+ * <p/>
+ * The pool is bounded by {@code maxTotal} connections overall and
+ * {@code maxPerRoute} connections per host, which may be overridden for a
+ * specific host with {@link #setMaxPerHost(String, int)}.  Timeouts are in
+ * milliseconds, with {@code 0} meaning no timeout.
+ * <p/>
+ * The response content is returned as the live entity stream, and the
+ * connection goes back to the pool once the stream is fully read or closed
+ * (see {@link Response#parseBody()} and {@link Response#openBody()}).
+ * Simple counters are kept to show how well connections are being reused.
+ */
+public class HttpClientTransport implements Transport, Closeable {
+    private PoolingHttpClientConnectionManager manager;
+    private CloseableHttpClient                client;
+    private RequestConfig                      config;
+    private AtomicLong                         requests = new AtomicLong();
+    private AtomicLong                         opened   = new AtomicLong();
+
+    public static final int DEFAULT_MAX_TOTAL     = 200;
+    public static final int DEFAULT_MAX_PER_ROUTE = 20;
+
+    /*------------------------------------------------------------------------*
+     * Constructors.                                                          *
+     *------------------------------------------------------------------------*/
+    public HttpClientTransport() {
+        HttpConnectionFactory<HttpRoute,ManagedHttpClientConnection> counting =
+            (HttpRoute route, ConnectionConfig config) -> {
+                opened.incrementAndGet();
+                return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+            };
+        manager = new PoolingHttpClientConnectionManager(counting);
+        manager.setMaxTotal(DEFAULT_MAX_TOTAL);
+        manager.setDefaultMaxPerRoute(DEFAULT_MAX_PER_ROUTE);
+        config  = RequestConfig.DEFAULT;
+        client  = HttpClients.custom()
+                             .setConnectionManager(manager)
+                             .disableCookieManagement()
+                             .build();
+    }
+
+    /*------------------------------------------------------------------------*
+     * Transport.                                                             *
+     *------------------------------------------------------------------------*/
+    @Override
+    public Response invoke(Request request) throws IOException {
+        requests.incrementAndGet();
+        CloseableHttpResponse http = client.execute(toHttpRequest(request, config));
+        try {
+            return toResponse(http);
+        } catch (IOException|RuntimeException e) {
+            http.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Converts a {@link Request} into an HttpClient request.
+     * @param request the request
+     * @param config the request configuration (timeouts)
+     * @return the HttpClient request
+     */
+    static HttpUriRequest toHttpRequest(Request request, RequestConfig config) {
+        RequestBuilder builder = RequestBuilder.create(request.getMethod().name())
+                                               .setUri(URI.create(request.getURI()))
+                                               .setConfig(config);
+        if (request.getUsername()!=null && request.getPassword()!=null) {
+            String credentials = request.getUsername()+":"+request.getPassword();
+            builder.addHeader("Authorization",
+                "Basic "+Base64.getEncoder().encodeToString(credentials.getBytes(Charsets.UTF_8)));
+        }
+        if (request.getHeaders()!=null) {
+            request.getHeaders().forEach((name,value)->builder.addHeader(name, value));
+        }
+        if (request.getCookies()!=null) {
+            builder.addHeader("Cookie", request.getCookies().entrySet().stream()
+                                               .map((e)->e.getKey()+"="+e.getValue())
+                                               .collect(Collectors.joining("; ")));
+        }
+        if (request.getBody()!=null) {
+            ContentType type = request.getType()!=null
+                             ? ContentType.create(request.getType(), Charsets.UTF_8)
+                             : ContentType.APPLICATION_JSON;
+            builder.setEntity(new StringEntity(request.getBody().toString(), type));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Converts an HttpClient response into a {@link Response}, leaving the
+     * entity as unparsed content.
+     * @param http the HttpClient response
+     * @return the response
+     * @throws IOException if the entity can not be opened
+     */
+    static Response toResponse(HttpResponse http) throws IOException {
+        Response response = new Response().setStatus(http.getStatusLine().getStatusCode());
+        HttpEntity entity = http.getEntity();
+        Header type = entity!=null ? entity.getContentType() : null;
+        response.setType(type!=null ? type.getValue() : "");
+        for (Header header : http.getAllHeaders()) {
+            if (header.getName().equalsIgnoreCase("Set-Cookie")) {
+                String cookie = header.getValue().split(";", 2)[0];
+                int eq = cookie.indexOf('=');
+                if (eq>0) {
+                    response.setCookie(cookie.substring(0, eq).trim(), cookie.substring(eq+1).trim());
+                }
+            }
+            response.setHeader(header.getName(), header.getValue());
+        }
+        response.setContent(entity!=null ? entity.getContent() : new ByteArrayInputStream(new byte[0]));
+        return response;
+    }
+
+    /**
+     * Closes all pooled connections.
+     */
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    /*------------------------------------------------------------------------*
+     * Pool metrics.                                                          *
+     *------------------------------------------------------------------------*/
+    /**
+     * @return the number of requests sent
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+    /**
+     * @return the number of connections opened
+     */
+    public long getConnectionsOpened() {
+        return opened.get();
+    }
+    /**
+     * @return the number of requests that reused a pooled connection
+     */
+    public long getReused() {
+        return Math.max(0, requests.get()-opened.get());
+    }
+    /**
+     * @return the current leased, available and pending counts of the pool
+     */
+    public PoolStats getPoolStats() {
+        return manager.getTotalStats();
+    }
+
+    /*------------------------------------------------------------------------*
+     * Pool settings (fluent).                                                *
+     *------------------------------------------------------------------------*/
+    /**
+     * @param max the maximum number of pooled connections
+     * @return this
+     */
+    public HttpClientTransport setMaxTotal(int max) {
+        manager.setMaxTotal(max);
+        return this;
+    }
+    /**
+     * @param max the default maximum number of connections per host
+     * @return this
+     */
+    public HttpClientTransport setMaxPerRoute(int max) {
+        manager.setDefaultMaxPerRoute(max);
+        return this;
+    }
+    /**
+     * Overrides the maximum number of connections for the host of {@code url}.
+     * @param url a URL on the host, e.g. {@code http://localhost:5080}
+     * @param max the maximum number of connections to the host
+     * @return this
+     */
+    public HttpClientTransport setMaxPerHost(String url, int max) {
+        URI uri = URI.create(url);
+        manager.setMaxPerRoute(new HttpRoute(new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme())), max);
+        return this;
+    }
+    /**
+     * @param timeout the connect timeout in milliseconds
+     * @return this
+     */
+    public HttpClientTransport setConnectTimeout(int timeout) {
+        config = RequestConfig.copy(config).setConnectTimeout(timeout).build();
+        return this;
+    }
+    /**
+     * @param timeout the socket (read) timeout in milliseconds
+     * @return this
+     */
+    public HttpClientTransport setSocketTimeout(int timeout) {
+        config = RequestConfig.copy(config).setSocketTimeout(timeout).build();
+        return this;
+    }
+    /**
+     * @param timeout the timeout in milliseconds to lease a pooled connection
+     * @return this
+     */
+    public HttpClientTransport setRequestTimeout(int timeout) {
+        config = RequestConfig.copy(config).setConnectionRequestTimeout(timeout).build();
+        return this;
+    }
+    /**
+     * Closes pooled connections that have been idle longer than {@code idle}.
+     * @param idle the idle time in milliseconds
+     * @return this
+     */
+    public HttpClientTransport closeIdle(long idle) {
+        manager.closeExpiredConnections();
+        manager.closeIdleConnections(idle, TimeUnit.MILLISECONDS);
+        return this;
+    }
+}
@@ -7,16 +7,22 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.IntStream;
 
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
 
 import org.skife.url.UrlSchemeRegistry;
@@ -30,17 +36,27 @@ import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.MissingNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.github.fge.jsonschema.core.exceptions.ProcessingException;
 import com.github.fge.jsonschema.core.load.configuration.LoadingConfiguration;
 import com.github.fge.jsonschema.core.load.uri.URITranslatorConfiguration;
+import com.github.fge.jsonschema.core.report.ProcessingReport;
+import com.github.fge.jsonschema.main.JsonSchema;
 import com.github.fge.jsonschema.main.JsonSchemaFactory;
-import com.google.common.collect.Sets;
+import com.google.common.cache.CacheStats;
 
-public class JsonComparator {
+public class JsonComparator implements AutoCloseable {
     public  static final Logger              logger         = Logger.getLogger(JsonComparator.class);
-    private static final ScriptEngineManager engine_factory = new ScriptEngineManager();
     public  static final ObjectMapper        mapper         = new ObjectMapper();
 
-    private              ScriptEngine        engine;
+    private              ScriptEnginePool    pool;
+    private              ScriptEnginePool.Entry
+                                             entry;
+    private              Scripting           scripting;
+    private              Binding             binding        = Binding.SOURCE;
+    private        final Map<String,JsonNode>
+                                             variables      = new HashMap<>();
+    private        final Set<String>         unbound        = new LinkedHashSet<>();
+    private        final Map<String,Object>  bound          = new HashMap<>();
 
     /*------------------------------------------------------------------------*
      * Set up static objects needed for schema validation.                    *
@@ -74,6 +90,50 @@ public class JsonComparator {
         return matchesJsonSchema(uriOrElse(schema_uri.toString()+schema)).using(schema_factory);
     }
 
+    /*------------------------------------------------------------------------*
+     * Schema registry: each schema is loaded and compiled once.              *
+     *------------------------------------------------------------------------*/
+    private static final ConcurrentMap<String,JsonSchema> schemas = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the compiled validator for {@code schema}, loading it from the
+     * schema directory on first use and caching it by name thereafter.
+     * @param schema the schema name, e.g. {@code collection.schema}
+     * @return the compiled schema
+     * @throws IOException if the schema cannot be loaded
+     */
+    public static JsonSchema getSchema(String schema) throws IOException {
+        JsonSchema compiled = schemas.get(schema);
+        if (compiled==null) {
+            try {
+                compiled = schema_factory.getJsonSchema(schema_uri.toString()+schema);
+            } catch (ProcessingException e) {
+                throw new IOException("can not load schema "+schema, e);
+            }
+            JsonSchema previous = schemas.putIfAbsent(schema, compiled);
+            if (previous!=null) {
+                compiled = previous;
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Validates an already parsed {@code body} against the cached
+     * {@code schema}.
+     * @param schema the schema name
+     * @param body the node to validate
+     * @return the validation report
+     * @throws IOException if the schema cannot be loaded or applied
+     */
+    public static ProcessingReport validate(String schema, JsonNode body) throws IOException {
+        try {
+            return getSchema(schema).validate(body);
+        } catch (ProcessingException e) {
+            throw new IOException("can not validate against schema "+schema, e);
+        }
+    }
+
     /**
      * Represents a script evaluation result that short-circuits further
      * comparison.  Use these values instead of {@link Boolean}, since
@@ -155,6 +215,19 @@ public class JsonComparator {
             this.actual   = actual;
             this.extra    = JsonNodeFactory.instance.textNode("${success}");
         }
+        /**
+         * Creates a comparison at an arbitrary {@code path}, used to report
+         * mismatches found outside of {@link JsonComparator#compareNodes(JsonNode, JsonNode)
+         * compareNodes} (see {@link JsonMatcher}).
+         * @param path the path
+         * @param expected the expected node
+         * @param actual the actual node
+         */
+        Comparison(JsonPointer path, JsonNode expected, JsonNode actual) {
+            this.path     = path;
+            this.expected = expected;
+            this.actual   = actual;
+        }
         /**
          * Assumes that both comparison elements are Arrays and creates
          * a new comparison at index {@code i}.
@@ -215,8 +288,8 @@ public class JsonComparator {
      */
     public Object evalScript(String script) {
         try {
-            Object result = engine.eval(script);
-            return result;
+            bind();
+            return scripting.eval(script);
         } catch (ScriptException e) {
             logger.debug(e);
             e.printStackTrace();
@@ -224,16 +297,186 @@ public class JsonComparator {
         }
     }
 
+    /**
+     * Returns the hit/miss statistics of the compiled script cache.
+     * @return the cache statistics
+     */
+    public CacheStats getScriptCacheStats() {
+        return scripting.getScriptCacheStats();
+    }
+
+    /**
+     * Evaluates a ${script} from an {@code expected} template against
+     * {@code actual}: natively, if {@code builtin} is not {@code null} and
+     * can decide, and otherwise by binding {@code actual} and evaluating
+     * {@code script} as for {@link #evalScript(String)}.
+     * @param script the script to run
+     * @param builtin its {@link Builtins#parse(String) native form}, or {@code null}
+     * @param actual the {@code JsonNode} to use for {@code actual}
+     * @return the evaluation result
+     */
+    public Object evalMatch(String script, Builtins.Builtin builtin, JsonNode actual) {
+        if (builtin!=null) {
+            Object result = builtin.eval(this, actual);
+            if (result!=null) {
+                return result;
+            }
+        }
+        putJson("actual", actual);
+        return evalScript(script);
+    }
+
+    /**
+     * Returns the value of a global script variable, without evaluating
+     * a script.
+     * @param var the variable name
+     * @return its value, or {@code null} if it is not set
+     */
+    public Object lookup(String var) {
+        if (assigned(var)) {
+            return scripting.get(var);
+        }
+        return defined(variables.get(var));
+    }
+
     public void putVar(String var, Object value) {
-        engine.put(var, value);
+        variables.remove(var);
+        unbound.remove(var);
+        bound.remove(var);
+        scripting.put(var, value);
     }
+    /**
+     * Selects how {@link JsonComparator#putJson(String, JsonNode) putJson}
+     * exposes a {@link JsonNode} to scripts:
+     * <ul>
+     * <li>{@code SOURCE} (the default) serializes the node and evaluates it
+     *     as a JavaScript literal, creating an independent (and mutable)
+     *     JavaScript copy</li>
+     * <li>{@code VIEW} binds a lazy, read-only view of the node (under
+     *     Nashorn, a {@code JsonView}),
+     *     so the cost does not depend on the size of the tree, but scripts
+     *     that assign to the JSON fail</li>
+     * </ul>
+     */
+    public enum Binding {SOURCE, VIEW};
+
+    /*------------------------------------------------------------------------*
+     * Variable store.                                                        *
+     *------------------------------------------------------------------------*/
+    /**
+     * Sets the variable {@code var} to {@code json}.  The value is kept in
+     * a Java-side variable store, from which {@link #getVariable(String)}
+     * reads it without entering the script engine, and is bound in the
+     * script engine, according to the {@link Binding} mode in effect, only
+     * when the next script is evaluated.  A {@code null} or missing node is
+     * bound as {@code undefined}.
+     * @param var the variable name
+     * @param json the value to bind
+     */
     public void putJson(String var, JsonNode json) {
-        try {
-            engine.eval("var "+var+"="+json.toString());
-        } catch (ScriptException e) {
-            logger.debug(e);
-            e.printStackTrace();
+        variables.put(var, json);
+        unbound.add(var);
+    }
+
+    /**
+     * Returns the value of a variable as JSON.  A value set by
+     * {@link #putJson(String, JsonNode) putJson} is returned from the
+     * variable store, unless a script has since assigned the variable, in
+     * which case (as for any other variable) the script value is converted.
+     * Under the {@code SOURCE} {@link Binding}, changes a script makes to
+     * the members of its copy, without assigning the variable itself, are
+     * not seen.
+     * @param var the variable name
+     * @return the value, or {@code null} if it is not set or {@code undefined}
+     */
+    public JsonNode getVariable(String var) {
+        if (!assigned(var)) {
+            return defined(variables.get(var));
+        }
+        Object value = scripting.get(var);
+        return value==null ? null : toJson(value);
+    }
+
+    /**
+     * @return {@code true} unless {@code var} was set by
+     * {@link #putJson(String, JsonNode) putJson} and no script has assigned
+     * it since
+     */
+    private boolean assigned(String var) {
+        if (unbound.contains(var)) {
+            return false;
+        } else if (!bound.containsKey(var)) {
+            return true;
+        }
+        Object value = scripting.raw(var);
+        return value==null ? bound.get(var)!=null : !value.equals(bound.get(var));
+    }
+
+    /**
+     * @return a read-only view of the variable store: the values last set
+     * by {@link #putJson(String, JsonNode) putJson}, whether or not scripts
+     * have reassigned them since
+     */
+    public Map<String,JsonNode> getVariables() {
+        return Collections.unmodifiableMap(variables);
+    }
+
+    /**
+     * Binds the variables set since the last script ran.
+     */
+    private void bind() {
+        if (unbound.isEmpty()) {
+            return;
+        }
+        for (String var : unbound) {
+            JsonNode json = variables.get(var);
+            if (binding==Binding.VIEW) {
+                scripting.putJson(var, json);
+            } else {
+                try {
+                    scripting.evalUncached("var "+var+"="+(defined(json)==null ? "undefined" : json.toString()));
+                } catch (ScriptException e) {
+                    logger.debug(e);
+                    e.printStackTrace();
+                }
+            }
+            bound.put(var, scripting.raw(var));
+        }
+        unbound.clear();
+    }
+
+    private static JsonNode defined(JsonNode json) {
+        return json==null || json.isMissingNode() ? null : json;
+    }
+
+    /**
+     * Get the {@link Binding} mode used by {@link #putJson(String, JsonNode) putJson}.
+     * @return the binding mode
+     */
+    public Binding getBinding() {
+        return binding;
+    }
+    /**
+     * Set the {@link Binding} mode used by {@link #putJson(String, JsonNode) putJson}
+     * ({@code SOURCE} by default).
+     * @param binding the binding mode
+     * @return {@code this}
+     */
+    public JsonComparator setBinding(Binding binding) {
+        this.binding = binding;
+        return this;
+    }
+
+    /**
+     * Converts a script evaluation result to a {@link JsonNode}.
+     * @param result the script result
+     * @return the result as a {@code JsonNode}
+     */
+    JsonNode toJson(Object result) {
+        if (result instanceof JsonNode) {
+            return (JsonNode)result;
         }
+        return mapper.convertValue(result, JsonNode.class);
     }
 
     /**
@@ -248,8 +491,8 @@ public class JsonComparator {
      * @param expected a {@code JsonNode}
      * @return a script body, or {@code null}
      */
-    private static String script(JsonNode expected) {
-        if (expected.isTextual()) {
+    static String script(JsonNode expected) {
+        if (expected.isTextual() && expected.textValue().startsWith("${")) {
             Matcher m = SCRIPT.matcher(expected.asText());
             if (m.matches()) {
                 return m.group(1);
@@ -275,83 +518,281 @@ public class JsonComparator {
      * For convenience, the JavaScript variables {@code success} and {@code failure}
      * are injected into the script, as well as a function {@code expect(boolean)}
      * that maps {@code true} to {@code success} and {@code false} to {@code failure}.
+     * <p/>
+     * Arrays are matched element by element, unless the first element of the
+     * expected array is an {@link ArrayDirective} such as {@code @unordered},
+     * {@code @contains} or {@code @key field}.
      * @param expected
      * @param actual
      * @return
      */
     public List<Comparison> compareNodes(JsonNode expected, JsonNode actual) {
-        Deque<Comparison> compares = new ArrayDeque<>();
-        List<Comparison>  report   = new ArrayList<>();
-        compares.add(new Comparison(expected, actual));
-        while (!compares.isEmpty()) {
-            Comparison c = compares.pop();
-            if (c.expected==null || c.actual==null) {
-                if (c.expected!=null || c.actual!=null) {
-                    report.add(c);
-                }
-                continue; // keep going...
+        List<Comparison> report = new ArrayList<>();
+        compare(expected, actual, SUCCESS_EXTRA, null, report);
+        return report;
+    }
+
+    /*------------------------------------------------------------------------*
+     * Comparison frames, reused across calls.                                *
+     *------------------------------------------------------------------------*/
+    private static final JsonNode SUCCESS_EXTRA = JsonNodeFactory.instance.textNode("${success}");
+
+    private JsonNode[] frameExpected = new JsonNode[64];
+    private JsonNode[] frameActual   = new JsonNode[64];
+    private JsonNode[] frameExtra    = new JsonNode[64];
+    private String[]   frameName     = new String[64];
+    private int[]      frameIndex    = new int[64];
+    private int[]      frameParent   = new int[64];
+    private boolean[]  frameProbe    = new boolean[64];
+    private int        frames        = 0;
+    private int        limit         = 0;
+
+    /**
+     * Adds a comparison frame: the {@code name} or {@code index} of the node
+     * within its {@code parent} frame is kept instead of a path, which is
+     * only built if a mismatch is reported.
+     */
+    private void frame(JsonNode expected, JsonNode actual, JsonNode extra, int parent, String name, int index, boolean probe) {
+        if (frames==frameExpected.length) {
+            int size = frames*2;
+            frameExpected = Arrays.copyOf(frameExpected, size);
+            frameActual   = Arrays.copyOf(frameActual, size);
+            frameExtra    = Arrays.copyOf(frameExtra, size);
+            frameName     = Arrays.copyOf(frameName, size);
+            frameIndex    = Arrays.copyOf(frameIndex, size);
+            frameParent   = Arrays.copyOf(frameParent, size);
+            frameProbe    = Arrays.copyOf(frameProbe, size);
+        }
+        frameExpected[frames] = expected;
+        frameActual[frames]   = actual;
+        frameExtra[frames]    = extra;
+        frameName[frames]     = name;
+        frameIndex[frames]    = index;
+        frameParent[frames]   = parent;
+        frameProbe[frames]    = probe;
+        frames++;
+    }
+
+    /**
+     * Returns the path of frame {@code k}, following {@code prefix}.
+     */
+    private Trail trail(int k, Trail prefix) {
+        Trail trail = prefix==null ? new Trail() : prefix.copy();
+        int depth = 0;
+        for (int f=k; frameParent[f]>=0; f=frameParent[f]) {
+            depth++;
+        }
+        int[] chain = new int[depth];
+        for (int f=k; frameParent[f]>=0; f=frameParent[f]) {
+            chain[--depth] = f;
+        }
+        for (int f : chain) {
+            if (frameName[f]!=null) {
+                trail.push(frameName[f]);
+            } else {
+                trail.push(frameIndex[f]);
             }
-            String script = script(c.expected);
-            if (script!=null) {
-                putJson("actual", c.actual);
-                Object result = evalScript(script);
-                if (Result.SUCCESS.equals(result)) {
-                    continue; // keep going...
-                } else if (Result.FAILURE.equals(result)) {
-                    report.add(c);
-                    continue; // short circuit failure...keep going...
-                } else if (result instanceof JsonNode) {
-                    c.expected = (JsonNode)result;
-                } else {
-                    c.expected = mapper.convertValue(result, JsonNode.class);
+        }
+        return trail;
+    }
+
+    /**
+     * Compares the trees in a breadth-first walk over the reusable frames,
+     * which are released (from {@code base} on) when the walk is done, so a
+     * walk may be nested in another, as for {@link ArrayDirective}s.
+     */
+    private void compare(JsonNode expected, JsonNode actual, JsonNode extra, Trail prefix, List<Comparison> report) {
+        int base = frames;
+        try {
+            frame(expected, actual, extra, -1, null, -1, true);
+            for (int k=base; k<frames; k++) {
+                if (limit>0 && report.size()>=limit) {
+                    break; // fail fast
                 }
-            }
-            if (c.expected.getNodeType()!=c.actual.getNodeType()) {
-                // fall through to report.add failure
-            } else if (c.expected.isNumber()) {
-                if (c.expected.canConvertToLong() && c.actual.canConvertToLong() &&
-                    c.expected.longValue()==c.actual.longValue()) {
-                    continue; // keep going...
-                } else if (c.actual.equals(c.expected)) {
+                JsonNode e = frameExpected[k];
+                JsonNode a = frameActual[k];
+                JsonNode x = frameExtra[k];
+                if (e==null || a==null) {
+                    if (e!=null || a!=null) {
+                        mismatch(k, e, a, x, prefix, report);
+                    }
                     continue; // keep going...
                 }
-            } else if (c.expected.isValueNode()) {
-                if (c.actual.equals(c.expected)) {
-                    continue; // keep going...
+                String script = script(e);
+                if (script!=null) {
+                    Object result = evalMatch(script, Builtins.parse(script), a);
+                    if (Result.SUCCESS.equals(result)) {
+                        continue; // keep going...
+                    } else if (Result.FAILURE.equals(result)) {
+                        mismatch(k, e, a, x, prefix, report);
+                        continue; // short circuit failure...keep going...
+                    } else {
+                        e = toJson(result);
+                    }
                 }
-                // otherwise fall through to report.add failure
-            } else if (c.expected.isArray()) {
-                if (c.expected.size()==c.actual.size()) {
-                    IntStream.range(0, c.expected.size()).forEach((i)->compares.add(c.get(i)));
-                    continue; // keep going...
+                if (e.getNodeType()!=a.getNodeType()) {
+                    // fall through to report failure
+                } else if (e.isNumber()) {
+                    if (e.canConvertToLong() && a.canConvertToLong() && e.longValue()==a.longValue()) {
+                        continue; // keep going...
+                    } else if (a.equals(e)) {
+                        continue; // keep going...
+                    }
+                } else if (e.isValueNode()) {
+                    if (a.equals(e)) {
+                        continue; // keep going...
+                    }
+                    // otherwise fall through to report failure
+                } else if (e.isArray()) {
+                    ArrayDirective directive = ArrayDirective.parse(e);
+                    if (directive!=null) {
+                        JsonNode[] elements = directive.getElements();
+                        JsonNode   policy   = x;
+                        Trail      trail    = trail(k, prefix);
+                        directive.match(e, a, trail, (i,element,elementReport) ->
+                            compare(elements[i], element, policy, trail, elementReport), report);
+                        continue; // array directives report their own failures
+                    }
+                    if (e.size()==a.size()) {
+                        // skip identical literal subtrees without visiting each node
+                        int literal = frameProbe[k] ? literal(e, a, x) : MISMATCH;
+                        if (literal!=MATCH) {
+                            for (int i=0; i<e.size(); i++) {
+                                frame(e.get(i), a.get(i), x, k, null, i, literal==UNKNOWN);
+                            }
+                        }
+                        continue; // keep going...
+                    }
+                    // otherwise fall through to report failure
+                } else if (e.isObject()) {
+                    int literal = frameProbe[k] ? literal(e, a, x) : MISMATCH;
+                    if (literal==MATCH) {
+                        continue; // identical literal subtree
+                    }
+                    boolean probe = literal==UNKNOWN;
+                    // check what to do with "extra" actual nodes not corresponding to expected fields
+                    // ** sets the default policy from here down the tree
+                    JsonNode starstar = e.get("**");
+                    if (starstar!=null) {
+                        x = starstar;
+                    }
+                    // for all expected fields, fire off a comparison.
+                    // note 1: any field in expected without a matching field in
+                    //         actual will be compared to MissingNode
+                    // note 2: the expected field "*" is reserved for matching extra
+                    //         fields in actual not appearing in expected (see below)
+                    for (Iterator<Map.Entry<String,JsonNode>> fields=e.fields(); fields.hasNext();) {
+                        Map.Entry<String,JsonNode> field = fields.next();
+                        String name = field.getKey();
+                        if (!(name.equals("*") || name.equals("**"))) {
+                            JsonNode child = a.get(name);
+                            frame(field.getValue(), child==null ? MissingNode.getInstance() : child, x, k, name, -1, probe);
+                        }
+                    }
+                    // now check the extra fields (if any) against the extra or "*" rule
+                    if (a.size()>0) {
+                        JsonNode star = e.get("*");
+                        for (Iterator<Map.Entry<String,JsonNode>> fields=a.fields(); fields.hasNext();) {
+                            Map.Entry<String,JsonNode> field = fields.next();
+                            if (!e.has(field.getKey())) {
+                                frame(star!=null ? star : x, field.getValue(), x, k, field.getKey(), -1, probe);
+                            }
+                        }
+                    }
+                    continue; // all Object.field cases are delegated
                 }
-                // otherwise fall through to report.add failure
-            } else if (c.expected.isObject()) {
-                // check what to do with "extra" actual nodes not corresponding to expected fields
-                // ** sets the default policy from here down the tree
-                JsonNode starstar = c.expected.get("**");
-                if (starstar!=null) {
-                    c.setExtra(starstar);
+                mismatch(k, e, a, x, prefix, report);
+            }
+        } finally {
+            // release the frames, and the nodes they refer to
+            Arrays.fill(frameExpected, base, frames, null);
+            Arrays.fill(frameActual, base, frames, null);
+            Arrays.fill(frameExtra, base, frames, null);
+            Arrays.fill(frameName, base, frames, null);
+            frames = base;
+        }
+    }
+
+    private void mismatch(int k, JsonNode expected, JsonNode actual, JsonNode extra, Trail prefix, List<Comparison> report) {
+        report.add(new Comparison(trail(k, prefix).toPointer(), expected, actual).setExtra(extra));
+    }
+
+    static final int MATCH    = 1;
+    static final int MISMATCH = 0;
+    static final int UNKNOWN  = -1;
+
+    /**
+     * Checks whether a template subtree matches an actual subtree literally,
+     * without allocating anything.  Returns {@code MATCH} if the subtree is
+     * free of ${scripts}, "*" and "**" rules and array directives, and
+     * matches; {@code MISMATCH} if it differs before any of these is found;
+     * and {@code UNKNOWN} otherwise.  Extra fields in the actual subtree are
+     * only accepted under the default ${success} policy.
+     */
+    static int literal(JsonNode expected, JsonNode actual, JsonNode extra) {
+        if (expected.isTextual()) {
+            String text = expected.textValue();
+            if (text.startsWith("${")) {
+                return UNKNOWN;
+            }
+            return actual.isTextual() && text.equals(actual.textValue()) ? MATCH : MISMATCH;
+        } else if (expected.getNodeType()!=actual.getNodeType()) {
+            return MISMATCH;
+        } else if (expected.isNumber()) {
+            return expected.canConvertToLong() && actual.canConvertToLong() && expected.longValue()==actual.longValue() ||
+                   actual.equals(expected) ? MATCH : MISMATCH;
+        } else if (expected.isValueNode()) {
+            return actual.equals(expected) ? MATCH : MISMATCH;
+        } else if (expected.isArray()) {
+            if (expected.size()>0 && expected.get(0).isTextual() && expected.get(0).textValue().startsWith("@")) {
+                return UNKNOWN; // possibly a directive
+            } else if (expected.size()!=actual.size()) {
+                return MISMATCH;
+            }
+            for (int i=0; i<expected.size(); i++) {
+                int result = literal(expected.get(i), actual.get(i), extra);
+                if (result!=MATCH) {
+                    return result;
                 }
-                // for all expected fields, fire off a comparison.
-                // note 1: any field in expected without a matching field in
-                //         actual will be compared to MissingNode (see get(name))
-                // note 2: the expected field "*" is reserved for matching extra
-                //         fields in actual not appearing in expected (see below)
-                c.expected.fieldNames().forEachRemaining((name)->{
-                    if (!(name.equals("*") || name.equals("**"))) {
-                        compares.add(c.get(name));
-                    }
-                });
-                // now check the extra fields (if any) against the extra or "*" rule
-                Set<String> extra = Sets.newHashSet(c.actual.fieldNames());
-                extra.removeAll(Sets.newHashSet(c.expected.fieldNames()));
-                extra.forEach((name)->compares.add(c.get(name)));
-                continue; // all Object.field cases are delegated
             }
-            report.add(c);
-        }//);
-        return report;
+            return MATCH;
+        }
+        if (expected.has("*") || expected.has("**")) {
+            return UNKNOWN;
+        }
+        for (Iterator<Map.Entry<String,JsonNode>> fields=expected.fields(); fields.hasNext();) {
+            Map.Entry<String,JsonNode> field = fields.next();
+            JsonNode child = actual.get(field.getKey());
+            int result = child==null ? (script(field.getValue())!=null ? UNKNOWN : MISMATCH)
+                                     : literal(field.getValue(), child, extra);
+            if (result!=MATCH) {
+                return result;
+            }
+        }
+        // every expected field is present, so any others are extra
+        if (actual.size()>expected.size() && !(extra.isTextual() && extra.textValue().equals("${success}"))) {
+            return UNKNOWN;
+        }
+        return MATCH;
+    }
+
+    /**
+     * @return the number of mismatches after which comparisons stop, or
+     * {@code 0} for no limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+    /**
+     * Sets a mismatch limit for fail-fast runs: {@link #compareNodes(JsonNode, JsonNode)
+     * compareNodes} and {@link JsonMatcher} stop comparing once they have
+     * found {@code limit} mismatches.
+     * @param limit the mismatch limit, or {@code 0} for no limit
+     * @return this
+     */
+    public JsonComparator setLimit(int limit) {
+        this.limit = limit;
+        return this;
     }
 
     /**
@@ -448,12 +889,7 @@ public class JsonComparator {
             if (e.node==null) continue;
             String script = script(e.node);
             if (script!=null) {
-                Object result = evalScript(script);
-                if (result instanceof JsonNode) {
-                    e.replace((JsonNode)result);
-                } else {
-                    e.replace(mapper.convertValue(result, JsonNode.class));
-                }
+                e.replace(toJson(evalScript(script)));
             }
             if (e.node.isArray()) {
                 IntStream.range(0, e.node.size()).forEach((i)->visits.add(e.get(i)));
@@ -486,26 +922,62 @@ public class JsonComparator {
     }
 
     /**
-     * Creates a new {@code JsonComparator} and initializes a {@link ScriptEngine}
-     * instance for use by subsequent invocations of {@link #compareNodes(JsonNode, JsonNode)
-     * compareNodes} and {@link #evalNode(JsonNode) evalNode}.  Since the script
-     * engine is bound to this {@code JsonComparator}, any {@code var} assignments
-     * made in the embedded ${script}s will survive, allowing chaining of compare and eval
-     * invocations.
+     * The helper prelude evaluated in each new script context, written to
+     * run on any {@link Scripting} engine (which may add to it).
      */
-    public JsonComparator () {
-        engine  = engine_factory.getEngineByName("JavaScript");
-        try {
-            engine.eval("load('nashorn:mozilla_compat.js');"+
-                        "importClass(Packages."+JsonComparator.Result.class.getName()+");"+
+    static final String PRELUDE = "var JsonComparator$Result=Java.type('"+JsonComparator.Result.class.getName()+"');"+
                         "var success=JsonComparator$Result.SUCCESS;"+
                         "var failure=JsonComparator$Result.FAILURE;"+
                         "function expect(b) { return b ? success : failure; }"+
-                        "function println(s) { java.lang.System.out.println(s); }"+
-                        "function yaml(o) { return com.cleo.labs.resttest.JsonComparator.yaml(JSON.stringify(o)); }"+
-                        "function debug(s) { com.cleo.labs.resttest.JsonComparator.logger.debug(s); }");
-        } catch (ScriptException e) {
-            e.printStackTrace();
+                        "function println(s) { Java.type('java.lang.System').out.println(s); }"+
+                        "function yaml(o) { return Java.type('"+JsonComparator.class.getName()+"').yaml(JSON.stringify(o)); }"+
+                        "function debug(s) { Java.type('"+JsonComparator.class.getName()+"').logger.debug(s); }"+
+                        Builtins.PRELUDE;
+
+    /**
+     * Creates a new {@code JsonComparator} and acquires a {@link Scripting}
+     * context from the default {@link ScriptEnginePool} for use by subsequent
+     * invocations of {@link #compareNodes(JsonNode, JsonNode) compareNodes} and
+     * {@link #evalNode(JsonNode) evalNode}.  Since the script engine is bound to
+     * this {@code JsonComparator}, any {@code var} assignments made in the
+     * embedded ${script}s will survive, allowing chaining of compare and eval
+     * invocations.  Use {@link #close()} to return the engine to the pool.
+     */
+    public JsonComparator () {
+        this(ScriptEnginePool.getDefault());
+    }
+
+    /**
+     * Creates a new {@code JsonComparator} as for {@link #JsonComparator()},
+     * retaining at most {@code cacheSize} compiled scripts: its engine is
+     * acquired from a shared pool of engines with that script cache size.
+     * @param cacheSize the maximum number of compiled scripts to cache
+     */
+    public JsonComparator (int cacheSize) {
+        this(ScriptEnginePool.getDefault(cacheSize));
+    }
+
+    /**
+     * Creates a new {@code JsonComparator} as for {@link #JsonComparator()},
+     * acquiring its script engine from {@code pool}.
+     * @param pool the engine pool
+     */
+    public JsonComparator (ScriptEnginePool pool) {
+        this.pool      = pool;
+        this.entry     = pool.acquire();
+        this.scripting = entry.getScripting();
+    }
+
+    /**
+     * Returns the script engine to its pool, resetting its global variables.
+     * The {@code JsonComparator} may not be used after it is closed.
+     */
+    @Override
+    public void close() {
+        if (entry!=null) {
+            pool.release(entry);
+            entry     = null;
+            scripting = null;
         }
     }
 }
@@ -0,0 +1,517 @@
+package com.cleo.labs.resttest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.cleo.labs.resttest.JsonComparator.Comparison;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Iterators;
+
+/**
+ * A precompiled form of an {@code expected} template, as used by
+ * {@link JsonComparator#compareNodes(JsonNode, JsonNode) compareNodes}.
+ * The template is analyzed once into an immutable tree of rules: literal
+ * values, ${script} slots, array and object rules, with the "*" and "**"
+ * extra field policies resolved in advance.  Matching walks the rule tree
+ * against the actual node without any pattern matching or set building,
+ * and reports mismatches as {@link Comparison} objects exactly as
+ * {@code compareNodes} would.  Subtrees without ${scripts} are first checked
+ * as a whole, and the {@link Trail} to a node is only turned into a path if
+ * a mismatch is reported, so a matching document produces little garbage.
+ * <p/>
+ * Templates are not modified by compilation, and a {@code JsonMatcher} may
+ * be shared across threads, provided each thread uses its own
+ * {@link JsonComparator} to evaluate the scripts.
+ * <p/>
+ * A template may also be matched against a {@link JsonParser} token stream
+ * (see {@link #match(JsonComparator, JsonParser)}).  Subtrees the template
+ * does not constrain are skipped without being read into memory, and only
+ * the subtrees bound to ${script} slots (or reported as mismatches) are
+ * materialized, so memory use is proportional to the template rather than
+ * to the actual document.  The {@link JsonComparator#setLimit(int) mismatch
+ * limit} applies as well: once it is reached, the rest of the document is
+ * skipped.  Since the fields of an object are matched in the order they are
+ * read, rather than in template order, a limited report may then hold
+ * different mismatches than {@code compareNodes} would report.
+ */
+public class JsonMatcher {
+    private final JsonNode expected;
+    private final Rule     root;
+
+    /*------------------------------------------------------------------------*
+     * Rules.                                                                 *
+     *------------------------------------------------------------------------*/
+    /**
+     * The extra field policy in effect for a subtree: the source node
+     * (${success} by default, or the nearest "**" rule) and its compiled form.
+     * The rule is assigned once during compilation, since a "**" policy
+     * applies to the fields of its own extra matches as well.
+     */
+    private static class Extra {
+        private final JsonNode source;
+        private       Rule     rule;
+        private Extra(JsonNode source) {
+            this.source = source;
+        }
+    }
+    private static final Extra DEFAULT_EXTRA = new Extra(JsonNodeFactory.instance.textNode("${success}"));
+    static {
+        DEFAULT_EXTRA.rule = compile(DEFAULT_EXTRA.source, DEFAULT_EXTRA, false);
+    }
+
+    private static abstract class Rule {
+        protected final JsonNode expected;
+        /**
+         * Set on the rules within a literal subtree, which is checked as a whole.
+         */
+        protected boolean        covered = false;
+        protected Rule(JsonNode expected) {
+            this.expected = expected;
+        }
+        protected void report(JsonNode actual, Trail trail, List<Comparison> report) {
+            report.add(new Comparison(trail.toPointer(), expected, actual));
+        }
+        abstract void match(JsonComparator comparator, JsonNode actual, Trail trail, List<Comparison> report);
+        /**
+         * Matches the value at the current token of {@code parser}, leaving the
+         * parser at the last token of the value.  By default the value is read
+         * into a tree and matched as a node.
+         */
+        void match(JsonComparator comparator, JsonParser parser, Trail trail, List<Comparison> report) throws IOException {
+            match(comparator, (JsonNode)parser.readValueAsTree(), trail, report);
+        }
+        /**
+         * @return {@code true} if this rule matches any value (i.e. ${success})
+         */
+        boolean unconstrained() {
+            return false;
+        }
+        /**
+         * @return {@code true} if this rule has no ${scripts}, "*" or "**"
+         * rules or array directives, so it can be checked for a literal match
+         */
+        boolean literal() {
+            return false;
+        }
+        /**
+         * Marks the rules below a literal rule as covered by its check.
+         */
+        void cover() {
+            covered = true;
+        }
+        /**
+         * @return {@code true} if the mismatch limit of {@code comparator} is reached
+         */
+        static boolean full(JsonComparator comparator, List<Comparison> report) {
+            return full(comparator, report.size());
+        }
+        static boolean full(JsonComparator comparator, int mismatches) {
+            return comparator.getLimit()>0 && mismatches>=comparator.getLimit();
+        }
+    }
+
+    /**
+     * A ${script} slot.  The script is evaluated with {@code actual} bound,
+     * and a result other than {@code success} or {@code failure} is matched
+     * as a literal template in turn.
+     */
+    private static class ScriptRule extends Rule {
+        private final String           script;
+        private final Builtins.Builtin builtin;
+        private final Extra            extra;
+        private ScriptRule(JsonNode expected, String script, Extra extra) {
+            super(expected);
+            this.script  = script;
+            this.builtin = Builtins.parse(script);
+            this.extra   = extra;
+        }
+        @Override
+        boolean unconstrained() {
+            return script.trim().equals("success");
+        }
+        @Override
+        void match(JsonComparator comparator, JsonNode actual, Trail trail, List<Comparison> report) {
+            Object result = comparator.evalMatch(script, builtin, actual);
+            if (JsonComparator.Result.SUCCESS.equals(result)) {
+                return;
+            } else if (JsonComparator.Result.FAILURE.equals(result)) {
+                report(actual, trail, report);
+            } else {
+                compile(comparator.toJson(result), extra, true).match(comparator, actual, trail, report);
+            }
+        }
+    }
+
+    private static class ValueRule extends Rule {
+        private final boolean integral;
+        private final long    longValue;
+        private ValueRule(JsonNode expected) {
+            super(expected);
+            this.integral  = expected.isNumber() && expected.canConvertToLong();
+            this.longValue = integral ? expected.longValue() : 0;
+        }
+        @Override
+        boolean literal() {
+            return true;
+        }
+        @Override
+        void match(JsonComparator comparator, JsonNode actual, Trail trail, List<Comparison> report) {
+            if (expected.getNodeType()==actual.getNodeType()) {
+                if (integral && actual.canConvertToLong() && actual.longValue()==longValue) {
+                    return;
+                } else if (actual.equals(expected)) {
+                    return;
+                }
+            }
+            report(actual, trail, report);
+        }
+    }
+
+    private static class ArrayRule extends Rule {
+        private final ArrayDirective directive;
+        private final Rule[]         elements;
+        private final boolean        literal;
+        private final Extra          extra;
+        private ArrayRule(JsonNode expected, Extra extra) {
+            super(expected);
+            this.extra = extra;
+            directive = ArrayDirective.parse(expected);
+            JsonNode[] nodes = directive!=null ? directive.getElements() : Iterators.toArray(expected.elements(), JsonNode.class);
+            elements = new Rule[nodes.length];
+            boolean literal = directive==null;
+            for (int i=0; i<elements.length; i++) {
+                elements[i] = compile(nodes[i], extra, false);
+                literal &= elements[i].literal();
+            }
+            this.literal = literal;
+            if (literal) {
+                Arrays.stream(elements).forEach(Rule::cover);
+            }
+        }
+        @Override
+        boolean literal() {
+            return literal;
+        }
+        @Override
+        void cover() {
+            super.cover();
+            Arrays.stream(elements).forEach(Rule::cover);
+        }
+        @Override
+        void match(JsonComparator comparator, JsonNode actual, Trail trail, List<Comparison> report) {
+            if (directive!=null) {
+                directive.match(expected, actual, trail, (i,element,elementReport) ->
+                    elements[i].match(comparator, element, trail, elementReport), report);
+                return;
+            }
+            if (!actual.isArray() || actual.size()!=elements.length) {
+                report(actual, trail, report);
+                return;
+            }
+            if (literal && !covered && JsonComparator.literal(expected, actual, extra.source)==JsonComparator.MATCH) {
+                return; // identical literal subtree
+            }
+            for (int i=0; i<elements.length && !full(comparator, report); i++) {
+                elements[i].match(comparator, actual.get(i), trail.push(i), report);
+                trail.pop();
+            }
+        }
+        @Override
+        void match(JsonComparator comparator, JsonParser parser, Trail trail, List<Comparison> report) throws IOException {
+            if (parser.getCurrentToken()!=JsonToken.START_ARRAY || directive!=null) {
+                // unordered matching needs the whole array
+                super.match(comparator, parser, trail, report);
+                return;
+            }
+            // element mismatches only count if the sizes turn out to agree
+            List<Comparison> elementReport = new ArrayList<>();
+            int size = 0;
+            while (parser.nextToken()!=JsonToken.END_ARRAY) {
+                if (size<elements.length && !full(comparator, report.size()+elementReport.size())) {
+                    elements[size].match(comparator, parser, trail.push(size), elementReport);
+                    trail.pop();
+                } else {
+                    parser.skipChildren();
+                }
+                size++;
+            }
+            if (size!=elements.length) {
+                report.add(new Comparison(trail.toPointer(), expected, JsonNodeFactory.instance.textNode("[array of "+size+" elements]")));
+            } else {
+                report.addAll(elementReport);
+            }
+        }
+    }
+
+    private static class ObjectRule extends Rule {
+        private final String[]      names;
+        private final Rule[]        fields;
+        private final Rule          star;
+        private final Extra         extra;
+        private final boolean       literal;
+        private final Map<String,Integer>
+                                    index = new HashMap<>();
+        private ObjectRule(JsonNode expected, Extra inherited) {
+            super(expected);
+            // ** sets the default policy from here down the tree
+            JsonNode starstar = expected.get("**");
+            if (starstar!=null) {
+                extra = new Extra(starstar);
+                extra.rule = compile(starstar, extra, false);
+            } else {
+                extra = inherited;
+            }
+            JsonNode starnode = expected.get("*");
+            star = starnode==null ? null : compile(starnode, extra, false);
+            List<String> list = new ArrayList<>();
+            expected.fieldNames().forEachRemaining((name)->{
+                if (!(name.equals("*") || name.equals("**"))) {
+                    list.add(name);
+                }
+            });
+            names    = list.toArray(new String[list.size()]);
+            fields   = new Rule[names.length];
+            boolean literal = star==null && starstar==null;
+            for (int i=0; i<names.length; i++) {
+                fields[i] = compile(expected.get(names[i]), extra, false);
+                literal  &= fields[i].literal();
+                index.put(names[i], i);
+            }
+            this.literal = literal;
+            if (literal) {
+                Arrays.stream(fields).forEach(Rule::cover);
+            }
+        }
+        @Override
+        boolean literal() {
+            return literal;
+        }
+        @Override
+        void cover() {
+            super.cover();
+            Arrays.stream(fields).forEach(Rule::cover);
+        }
+        @Override
+        void match(JsonComparator comparator, JsonNode actual, Trail trail, List<Comparison> report) {
+            if (!actual.isObject()) {
+                report(actual, trail, report);
+                return;
+            }
+            if (literal && !covered && JsonComparator.literal(expected, actual, extra.source)==JsonComparator.MATCH) {
+                return; // identical literal subtree
+            }
+            // any field in expected without a matching field in actual
+            // is compared to MissingNode
+            for (int i=0; i<names.length && !full(comparator, report); i++) {
+                JsonNode child = actual.get(names[i]);
+                fields[i].match(comparator, child==null ? MissingNode.getInstance() : child,
+                                trail.push(names[i]), report);
+                trail.pop();
+            }
+            // extra fields are matched against the "*" rule, or the extra policy
+            Rule rule = star!=null ? star : extra.rule;
+            if (rule.unconstrained()) {
+                return;
+            }
+            Iterator<Map.Entry<String,JsonNode>> extras = actual.fields();
+            while (extras.hasNext() && !full(comparator, report)) {
+                Map.Entry<String,JsonNode> field = extras.next();
+                if (!expected.has(field.getKey())) {
+                    rule.match(comparator, field.getValue(), trail.push(field.getKey()), report);
+                    trail.pop();
+                }
+            }
+        }
+        @Override
+        void match(JsonComparator comparator, JsonParser parser, Trail trail, List<Comparison> report) throws IOException {
+            if (parser.getCurrentToken()!=JsonToken.START_OBJECT) {
+                super.match(comparator, parser, trail, report);
+                return;
+            }
+            boolean[] seen = new boolean[names.length];
+            Rule rule = star!=null ? star : extra.rule;
+            while (parser.nextToken()==JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                Integer i = index.get(name);
+                if (full(comparator, report)) {
+                    parser.skipChildren(); // the limit is reached: read past the rest
+                } else if (i!=null) {
+                    seen[i] = true;
+                    fields[i].match(comparator, parser, trail.push(name), report);
+                    trail.pop();
+                } else if (expected.has(name) || rule.unconstrained()) {
+                    // "*" and "**" are not fields, and ${success} needs no value
+                    parser.skipChildren();
+                } else {
+                    rule.match(comparator, parser, trail.push(name), report);
+                    trail.pop();
+                }
+            }
+            // any field in expected that did not appear is compared to MissingNode
+            for (int i=0; i<names.length && !full(comparator, report); i++) {
+                if (!seen[i]) {
+                    fields[i].match(comparator, MissingNode.getInstance(), trail.push(names[i]), report);
+                    trail.pop();
+                }
+            }
+        }
+        /**
+         * Matches an object whose fields are taken from the {@code head} node,
+         * except for the {@code streamed} field, which is read from {@code parser}.
+         */
+        private void matchHead(JsonComparator comparator, JsonNode head, String streamed, JsonParser parser,
+                               Trail trail, List<Comparison> report) throws IOException {
+            Rule rule = star!=null ? star : extra.rule;
+            Integer streamedIndex = index.get(streamed);
+            if (streamedIndex!=null) {
+                fields[streamedIndex].match(comparator, parser, trail.push(streamed), report);
+                trail.pop();
+            } else if (!rule.unconstrained() && parser.hasCurrentToken()) {
+                rule.match(comparator, parser, trail.push(streamed), report);
+                trail.pop();
+            }
+            for (int i=0; i<names.length && !full(comparator, report); i++) {
+                if (!names[i].equals(streamed)) {
+                    JsonNode child = head.get(names[i]);
+                    fields[i].match(comparator, child==null ? MissingNode.getInstance() : child,
+                                    trail.push(names[i]), report);
+                    trail.pop();
+                }
+            }
+            Iterator<String> extras = head.fieldNames();
+            while (extras.hasNext() && !full(comparator, report)) {
+                String name = extras.next();
+                if (!expected.has(name) && !name.equals(streamed)) {
+                    rule.match(comparator, head.get(name), trail.push(name), report);
+                    trail.pop();
+                }
+            }
+        }
+    }
+
+    /*------------------------------------------------------------------------*
+     * Compiling and matching.                                                *
+     *------------------------------------------------------------------------*/
+    /**
+     * Compiles a template node under the given extra field policy.
+     * @param expected the template node
+     * @param extra the extra field policy in effect
+     * @param evaluated {@code true} if {@code expected} is itself a script
+     *        result, which is matched literally even if it looks like a ${script}
+     * @return the compiled rule
+     */
+    private static Rule compile(JsonNode expected, Extra extra, boolean evaluated) {
+        String script = evaluated ? null : JsonComparator.script(expected);
+        if (script!=null) {
+            return new ScriptRule(expected, script, extra);
+        } else if (expected.isArray()) {
+            return new ArrayRule(expected, extra);
+        } else if (expected.isObject()) {
+            return new ObjectRule(expected, extra);
+        }
+        return new ValueRule(expected);
+    }
+
+    /**
+     * Compiles an {@code expected} template.
+     * @param expected the template, or {@code null}
+     * @return the compiled matcher
+     */
+    public static JsonMatcher compile(JsonNode expected) {
+        return new JsonMatcher(expected);
+    }
+
+    private JsonMatcher(JsonNode expected) {
+        this.expected = expected;
+        this.root     = expected==null ? null : compile(expected, DEFAULT_EXTRA, false);
+    }
+
+    /**
+     * Returns the template this matcher was compiled from.
+     * @return the template
+     */
+    public JsonNode getExpected() {
+        return expected;
+    }
+
+    /**
+     * Matches the {@code actual} tree against the compiled template, returning
+     * a list of {@link Comparison} objects for items that do not match.  The
+     * ${scripts} are evaluated using {@code comparator}, so any {@code var}
+     * assignments they make are visible to subsequent scripts.
+     * @param comparator the comparator used to evaluate ${scripts}
+     * @param actual the actual tree
+     * @return the mismatches (empty if the trees match)
+     */
+    public List<Comparison> match(JsonComparator comparator, JsonNode actual) {
+        List<Comparison> report = new ArrayList<>();
+        if (root==null || actual==null) {
+            if (root!=null || actual!=null) {
+                report.add(new Comparison(new Trail().toPointer(), expected, actual));
+            }
+        } else {
+            root.match(comparator, actual, new Trail(), report);
+        }
+        return report;
+    }
+
+    /**
+     * Matches the document read from {@code parser} against the compiled
+     * template, as for {@link #match(JsonComparator, JsonNode)}, skipping
+     * any subtree the template does not constrain.
+     * @param comparator the comparator used to evaluate ${scripts}
+     * @param parser the parser, before or at the first token of the document
+     * @return the mismatches (empty if the document matches)
+     * @throws IOException if the document cannot be read
+     */
+    public List<Comparison> match(JsonComparator comparator, JsonParser parser) throws IOException {
+        if (!parser.hasCurrentToken()) {
+            parser.nextToken();
+        }
+        if (root==null || !parser.hasCurrentToken()) {
+            return match(comparator, parser.hasCurrentToken() ? (JsonNode)parser.readValueAsTree() : null);
+        }
+        List<Comparison> report = new ArrayList<>();
+        root.match(comparator, parser, new Trail(), report);
+        return report;
+    }
+
+    /**
+     * Matches an object assembled from the {@code head} node, holding every
+     * field but {@code field}, and the value of {@code field} read from
+     * {@code parser}, as for {@link #match(JsonComparator, JsonParser)}.  This
+     * is used to match a response template against a {@link Response} whose
+     * body has not been parsed.
+     * @param comparator the comparator used to evaluate ${scripts}
+     * @param head the object without {@code field}
+     * @param field the name of the streamed field
+     * @param parser the parser for the value of {@code field}
+     * @return the mismatches (empty if the document matches)
+     * @throws IOException if the document cannot be read
+     */
+    public List<Comparison> match(JsonComparator comparator, JsonNode head, String field, JsonParser parser) throws IOException {
+        if (!parser.hasCurrentToken()) {
+            parser.nextToken();
+        }
+        if (!(root instanceof ObjectRule)) {
+            // nothing to stream into: read the field and match the whole object
+            ObjectNode whole = head.deepCopy();
+            whole.set(field, parser.hasCurrentToken() ? (JsonNode)parser.readValueAsTree() : null);
+            return match(comparator, whole);
+        }
+        List<Comparison> report = new ArrayList<>();
+        ((ObjectRule)root).matchHead(comparator, head, field, parser, new Trail(), report);
+        return report;
+    }
+}
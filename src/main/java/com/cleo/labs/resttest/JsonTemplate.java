@@ -0,0 +1,232 @@
+package com.cleo.labs.resttest;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * A precompiled form of a template with ${script} slots, such as the
+ * {@code request} of a {@link TestStep}, which {@link #instantiate(JsonComparator)
+ * instantiates} into a fresh tree for each run instead of editing the template
+ * in place as {@link JsonComparator#evalNode(JsonNode) evalNode} does.
+ * <p/>
+ * The template is copied once and analyzed into an immutable tree of parts:
+ * constant subtrees (containing no scripts), script slots, and the arrays
+ * and objects leading to them.  Instantiation evaluates the slots (in the
+ * same breadth-first order as {@code evalNode}) and then rebuilds only the
+ * containers on the path to a slot.  Constant subtrees are shared between
+ * all instances, so an instance must be treated as read-only.
+ * <p/>
+ * As in {@code evalNode}, an array or object returned by a script is
+ * itself searched for ${scripts}, which are evaluated in turn.  They are
+ * evaluated as soon as the script returning them, however, where
+ * {@code evalNode} queues them behind the rest of the template.
+ * <p/>
+ * A {@code JsonTemplate} may be shared across threads, provided each thread
+ * uses its own {@link JsonComparator} to evaluate the scripts.
+ */
+public class JsonTemplate {
+    private final JsonNode           template;
+    private final Part               root;
+    private final String[]           scripts;
+    private final Builtins.Builtin[] references;
+
+    /*------------------------------------------------------------------------*
+     * Parts.                                                                 *
+     *------------------------------------------------------------------------*/
+    private static abstract class Part {
+        abstract JsonNode instantiate(JsonNode[] values);
+    }
+    private static class ConstantPart extends Part {
+        private final JsonNode node;
+        private ConstantPart(JsonNode node) {
+            this.node = node;
+        }
+        @Override
+        JsonNode instantiate(JsonNode[] values) {
+            return node;
+        }
+    }
+    private static class ScriptPart extends Part {
+        private int slot;
+        @Override
+        JsonNode instantiate(JsonNode[] values) {
+            return values[slot];
+        }
+    }
+    private static class ArrayPart extends Part {
+        private final Part[] elements;
+        private ArrayPart(Part[] elements) {
+            this.elements = elements;
+        }
+        @Override
+        JsonNode instantiate(JsonNode[] values) {
+            ArrayNode array = JsonNodeFactory.instance.arrayNode();
+            for (Part element : elements) {
+                array.add(element.instantiate(values));
+            }
+            return array;
+        }
+    }
+    private static class ObjectPart extends Part {
+        private final String[] names;
+        private final Part[]   fields;
+        private ObjectPart(String[] names, Part[] fields) {
+            this.names  = names;
+            this.fields = fields;
+        }
+        @Override
+        JsonNode instantiate(JsonNode[] values) {
+            ObjectNode object = JsonNodeFactory.instance.objectNode();
+            for (int i=0; i<names.length; i++) {
+                object.set(names[i], fields[i].instantiate(values));
+            }
+            return object;
+        }
+    }
+
+    /*------------------------------------------------------------------------*
+     * Compiling.                                                             *
+     *------------------------------------------------------------------------*/
+    private JsonTemplate(JsonNode template) {
+        this.template = template;
+        this.root     = template==null ? null : compile(template);
+        // number the slots breadth first, the order in which evalNode runs them
+        List<String> scripts = new ArrayList<>();
+        Deque<JsonNode> nodes = new ArrayDeque<>();
+        Deque<Part>     parts = new ArrayDeque<>();
+        if (root!=null) {
+            nodes.add(template);
+            parts.add(root);
+        }
+        while (!parts.isEmpty()) {
+            JsonNode node = nodes.pop();
+            Part     part = parts.pop();
+            if (part instanceof ScriptPart) {
+                ((ScriptPart)part).slot = scripts.size();
+                scripts.add(JsonComparator.script(node));
+            } else if (part instanceof ArrayPart) {
+                Part[] elements = ((ArrayPart)part).elements;
+                for (int i=0; i<elements.length; i++) {
+                    nodes.add(node.get(i));
+                    parts.add(elements[i]);
+                }
+            } else if (part instanceof ObjectPart) {
+                ObjectPart object = (ObjectPart)part;
+                for (int i=0; i<object.names.length; i++) {
+                    nodes.add(node.get(object.names[i]));
+                    parts.add(object.fields[i]);
+                }
+            }
+        }
+        this.scripts = scripts.toArray(new String[scripts.size()]);
+        // slots that just reference a variable are read without a script
+        this.references = new Builtins.Builtin[this.scripts.length];
+        for (int i=0; i<this.scripts.length; i++) {
+            references[i] = Builtins.reference(this.scripts[i]);
+        }
+    }
+
+    private static Part compile(JsonNode node) {
+        if (JsonComparator.script(node)!=null) {
+            return new ScriptPart();
+        } else if (node.isArray()) {
+            Part[] elements = new Part[node.size()];
+            boolean constant = true;
+            for (int i=0; i<elements.length; i++) {
+                elements[i] = compile(node.get(i));
+                constant &= elements[i] instanceof ConstantPart;
+            }
+            return constant ? new ConstantPart(node) : new ArrayPart(elements);
+        } else if (node.isObject()) {
+            String[] names  = new String[node.size()];
+            Part[]   fields = new Part[node.size()];
+            boolean constant = true;
+            int i = 0;
+            for (Iterator<Map.Entry<String,JsonNode>> it=node.fields(); it.hasNext(); i++) {
+                Map.Entry<String,JsonNode> field = it.next();
+                names[i]  = field.getKey();
+                fields[i] = compile(field.getValue());
+                constant &= fields[i] instanceof ConstantPart;
+            }
+            return constant ? new ConstantPart(node) : new ObjectPart(names, fields);
+        }
+        return new ConstantPart(node);
+    }
+
+    /**
+     * Compiles a template.  The template is copied, so later changes to
+     * {@code template} do not affect the compiled form.
+     * @param template the template, which may be {@code null}
+     * @return the compiled template
+     */
+    public static JsonTemplate compile(JsonNode template) {
+        return new JsonTemplate(template==null ? null : template.deepCopy());
+    }
+
+    /*------------------------------------------------------------------------*
+     * Instantiating.                                                         *
+     *------------------------------------------------------------------------*/
+    /**
+     * Evaluates the ${script} slots with {@code comparator} and returns a new
+     * tree with the results in place of the slots.  Constant subtrees are
+     * shared with the template and other instances, and must not be modified.
+     * @param comparator the {@link JsonComparator} evaluating the scripts
+     * @return the instance, or {@code null} for a {@code null} template
+     */
+    public JsonNode instantiate(JsonComparator comparator) {
+        if (root==null) {
+            return null;
+        }
+        JsonNode[] values = new JsonNode[scripts.length];
+        for (int i=0; i<scripts.length; i++) {
+            Object value = references[i]==null ? null : references[i].eval(comparator, null);
+            values[i] = comparator.toJson(value!=null ? value : comparator.evalScript(scripts[i]));
+            if (values[i]!=null && values[i].isContainerNode() && hasScripts(values[i])) {
+                values[i] = comparator.evalNode(values[i].deepCopy());
+            }
+        }
+        return root.instantiate(values);
+    }
+
+    private static boolean hasScripts(JsonNode node) {
+        if (JsonComparator.script(node)!=null) {
+            return true;
+        }
+        for (JsonNode child : node) {
+            if (hasScripts(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the (private copy of the) template
+     */
+    public JsonNode getTemplate() {
+        return template;
+    }
+
+    /**
+     * @return the number of ${script} slots
+     */
+    public int getSlots() {
+        return scripts.length;
+    }
+
+    /**
+     * @return {@code true} if the template has no ${script} slots
+     */
+    public boolean isConstant() {
+        return scripts.length==0;
+    }
+}
@@ -0,0 +1,290 @@
+package com.cleo.labs.resttest;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Drives a {@link TestSequence} as a load test.  A number of concurrent
+ * virtual {@code users} each run the sequence in a loop until the
+ * {@code duration} has elapsed, pausing {@code thinkTime} between
+ * iterations.  Users are started evenly over the {@code rampUp} period.
+ * If a {@link Provider} is set, each iteration takes the next row of
+ * parameters from it (round robin across all users).  The rows are drawn
+ * from one shared {@link Provider#iterator()}, restarted when it runs out,
+ * so file and generated rows are read lazily, as the load needs them.
+ * <p/>
+ * Each iteration uses its own {@link JsonComparator}, and the step results
+ * are aggregated into a {@link Summary} reporting throughput, error rate
+ * and latency per step.  All times are configured in milliseconds.
+ */
+public class LoadRunner {
+    private TestSequence sequence  = null;
+    private Provider     provider  = null;
+    private int          users     = 1;
+    private long         duration  = 60000;
+    private long         rampUp    = 0;
+    private long         thinkTime = 0;
+
+    /**
+     * The provider's rows, drawn in turn by all users.
+     */
+    private static class Rows {
+        private final Provider           provider;
+        private final String[]           parameters;
+        private       Iterator<Object[]> iterator;
+        private Rows(Provider provider, String[] parameters) {
+            this.provider   = provider;
+            this.parameters = parameters;
+            this.iterator   = provider.iterator(parameters);
+        }
+        /**
+         * @return the next row, or {@code null} if the provider has none
+         */
+        private synchronized JsonNode[] next() {
+            if (!iterator.hasNext()) {
+                iterator = provider.iterator(parameters);
+                if (!iterator.hasNext()) {
+                    return null;
+                }
+            }
+            @SuppressWarnings("unchecked")
+            List<JsonNode> row = (List<JsonNode>)iterator.next()[0];
+            return row.toArray(new JsonNode[row.size()]);
+        }
+    }
+
+    /**
+     * Aggregated statistics for one step of the sequence.
+     */
+    public static class StepSummary {
+        public String description = null;
+        public long   count       = 0;
+        public long   errors      = 0;
+        public long   skipped     = 0;
+        public long   total       = 0;
+        public long   min         = Long.MAX_VALUE;
+        public long   max         = 0;
+        private synchronized void add(TestStep.Result result) {
+            count++;
+            if (!result.ok) {
+                errors++;
+            }
+            if (result.skip) {
+                skipped++;
+            }
+            total += result.elapsed;
+            min    = Math.min(min, result.elapsed);
+            max    = Math.max(max, result.elapsed);
+        }
+        /**
+         * @param seconds the elapsed run time
+         * @return the step executions per second
+         */
+        public double getThroughput(double seconds) {
+            return seconds>0 ? count/seconds : 0;
+        }
+        /**
+         * @return the fraction of step executions that failed
+         */
+        public double getErrorRate() {
+            return count>0 ? (double)errors/count : 0;
+        }
+        /**
+         * @return the mean step latency in milliseconds
+         */
+        public double getMean() {
+            return count>0 ? total/1e6/count : 0;
+        }
+    }
+
+    /**
+     * The result of a load run: overall iteration counts and a
+     * {@link StepSummary} for each step.
+     */
+    public static class Summary {
+        public int           users      = 0;
+        public double        elapsed    = 0;
+        public long          iterations = 0;
+        public long          failures   = 0;
+        public StepSummary[] steps      = null;
+        /**
+         * @return the sequence iterations per second
+         */
+        public double getThroughput() {
+            return elapsed>0 ? iterations/elapsed : 0;
+        }
+        /**
+         * Produces a tabular report of the run.
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%d users, %.1fs: %d iterations (%.2f/s), %d failed%n",
+                    users, elapsed, iterations, getThroughput(), failures));
+            sb.append(String.format("%-4s %10s %10s %8s %10s %10s %10s  %s%n",
+                    "step", "count", "rate/s", "errors", "mean ms", "min ms", "max ms", "description"));
+            for (int i=0; i<steps.length; i++) {
+                StepSummary s = steps[i];
+                sb.append(String.format("%-4d %10d %10.2f %7.2f%% %10.2f %10.2f %10.2f  %s%n",
+                        i, s.count, s.getThroughput(elapsed), 100*s.getErrorRate(), s.getMean(),
+                        s.count>0 ? s.min/1e6 : 0, s.max/1e6,
+                        s.description==null ? "" : s.description));
+            }
+            return sb.toString();
+        }
+    }
+
+    /*------------------------------------------------------------------------*
+     * Running the load.                                                      *
+     *------------------------------------------------------------------------*/
+    /**
+     * Creates a {@code LoadRunner} for {@code sequence}.
+     * @param sequence the sequence each virtual user runs
+     */
+    public LoadRunner(TestSequence sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Runs the load and waits for all virtual users to finish.
+     * @return the summary
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Summary run() throws InterruptedException {
+        Rows rows = provider==null ? null : new Rows(provider, sequence.getParameters());
+        Summary summary = new Summary();
+        summary.users = users;
+        summary.steps = IntStream.range(0, sequence.getSteps().length).mapToObj((i) -> {
+            StepSummary s = new StepSummary();
+            s.description = sequence.getSteps()[i].getDescription();
+            return s;
+        }).toArray(StepSummary[]::new);
+        AtomicLong iterations = new AtomicLong();
+        AtomicLong failures   = new AtomicLong();
+
+        long start    = System.nanoTime();
+        long deadline = start+TimeUnit.MILLISECONDS.toNanos(duration);
+        ExecutorService executor = Executors.newFixedThreadPool(users);
+        for (int u=0; u<users; u++) {
+            long delay = users>1 ? rampUp*u/(users-1) : 0;
+            executor.execute(() -> {
+                try {
+                    Thread.sleep(delay);
+                    while (System.nanoTime()<deadline) {
+                        JsonNode[] parameters = rows==null ? null : rows.next();
+                        try (JsonComparator comparator = new JsonComparator()) {
+                            TestSequence.Result result = sequence.run(comparator, parameters);
+                            for (int i=0; i<result.steps.size(); i++) {
+                                summary.steps[i].add(result.steps.get(i));
+                            }
+                            if (!result.ok) {
+                                failures.incrementAndGet();
+                            }
+                        } catch (Throwable t) {
+                            failures.incrementAndGet();
+                        }
+                        iterations.incrementAndGet();
+                        if (thinkTime>0) {
+                            Thread.sleep(thinkTime);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(duration+rampUp+TimeUnit.MINUTES.toMillis(10), TimeUnit.MILLISECONDS);
+        summary.elapsed    = (System.nanoTime()-start)/1e9;
+        summary.iterations = iterations.get();
+        summary.failures   = failures.get();
+        return summary;
+    }
+
+    /*------------------------------------------------------------------------*
+     * Generated setter/getters (edited for fluency)                          *
+     *------------------------------------------------------------------------*/
+    /**
+     * @return the sequence
+     */
+    public TestSequence getSequence() {
+        return sequence;
+    }
+    /**
+     * @return the provider
+     */
+    public Provider getProvider() {
+        return provider;
+    }
+    /**
+     * @param provider the provider of parameter rows
+     * @return this
+     */
+    public LoadRunner setProvider(Provider provider) {
+        this.provider = provider;
+        return this;
+    }
+    /**
+     * @return the number of virtual users
+     */
+    public int getUsers() {
+        return users;
+    }
+    /**
+     * @param users the number of virtual users to set
+     * @return this
+     */
+    public LoadRunner setUsers(int users) {
+        this.users = users;
+        return this;
+    }
+    /**
+     * @return the duration in milliseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+    /**
+     * @param duration the duration in milliseconds to set
+     * @return this
+     */
+    public LoadRunner setDuration(long duration) {
+        this.duration = duration;
+        return this;
+    }
+    /**
+     * @return the ramp up period in milliseconds
+     */
+    public long getRampUp() {
+        return rampUp;
+    }
+    /**
+     * @param rampUp the ramp up period in milliseconds to set
+     * @return this
+     */
+    public LoadRunner setRampUp(long rampUp) {
+        this.rampUp = rampUp;
+        return this;
+    }
+    /**
+     * @return the think time in milliseconds
+     */
+    public long getThinkTime() {
+        return thinkTime;
+    }
+    /**
+     * @param thinkTime the think time in milliseconds to set
+     * @return this
+     */
+    public LoadRunner setThinkTime(long thinkTime) {
+        this.thinkTime = thinkTime;
+        return this;
+    }
+}
@@ -0,0 +1,96 @@
+package com.cleo.labs.resttest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Resources;
+
+/**
+ * An on-disk cache of YAML test plans in the binary Smile format, which is
+ * much faster to parse than YAML.  Each file is cached under the SHA-1 hash
+ * of its YAML source, so any change to the source misses the cache, and the
+ * cache can be shared by several JVMs (e.g. surefire forks) and runs.
+ * <p/>
+ * The cache is enabled by setting the {@code resttest.cache} system property
+ * to a directory, which is created if need be.  Stale entries are never
+ * removed: the directory may be deleted at any time.
+ */
+public class PlanCache {
+    public static final String PROPERTY = "resttest.cache";
+
+    private static final YAMLFactory  yaml_factory  = new YAMLFactory();
+    private static final SmileFactory smile_factory = new SmileFactory();
+
+    private final File directory;
+
+    /**
+     * Creates a cache in {@code directory}.
+     * @param directory the cache directory
+     */
+    public PlanCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the cache configured by the {@code resttest.cache} system
+     * property.
+     * @return the cache, or {@code null} if the property is not set
+     */
+    public static PlanCache getDefault() {
+        String directory = System.getProperty(PROPERTY);
+        return directory==null || directory.isEmpty() ? null : new PlanCache(new File(directory));
+    }
+
+    /**
+     * Opens a parser on the plan at {@code u}: the cached Smile form if it
+     * is up to date, otherwise the YAML source, which is converted and
+     * cached first.  If the cache can not be written, the YAML is parsed
+     * directly.
+     * @param u the YAML URL
+     * @return the parser
+     * @throws IOException if the source can not be read
+     */
+    public JsonParser open(URL u) throws IOException {
+        byte[] yaml = Resources.toByteArray(u);
+        File cached = new File(directory, Hashing.sha1().hashBytes(yaml).toString()+".sml");
+        if (!cached.isFile()) {
+            try {
+                write(yaml, cached);
+            } catch (IOException e) {
+                JsonComparator.logger.debug("can not cache "+u+" in "+directory, e);
+                return yaml_factory.createParser(yaml);
+            }
+        }
+        return smile_factory.createParser(cached);
+    }
+
+    /**
+     * Converts {@code yaml} to Smile in a temporary file, then moves it into
+     * place, so that concurrent readers never see a partial entry.
+     */
+    private void write(byte[] yaml, File cached) throws IOException {
+        directory.mkdirs();
+        File temp = File.createTempFile("plan", ".tmp", directory);
+        try {
+            try (JsonParser       parser    = yaml_factory.createParser(yaml);
+                 FileOutputStream out       = new FileOutputStream(temp);
+                 JsonGenerator    generator = smile_factory.createGenerator(out)) {
+                while (parser.nextToken()!=null) {
+                    generator.copyCurrentStructure(parser);
+                }
+            }
+            Files.move(temp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            temp.delete();
+        }
+    }
+}
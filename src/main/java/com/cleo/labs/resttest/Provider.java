@@ -1,29 +1,74 @@
 package com.cleo.labs.resttest;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.csv.CsvFactory;
+import com.fasterxml.jackson.dataformat.csv.CsvParser;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
-import com.fasterxml.jackson.dataformat.yaml.YAMLParser;
+import com.google.common.collect.Iterators;
+import com.google.common.io.Files;
 import com.google.common.io.Resources;
 
+/**
+ * Supplies rows of parameters for a data-driven {@link TestSequence}.  The
+ * rows are either listed inline in {@code data}, or read from an external
+ * {@code file} (a URL, resolved relative to the file the provider was loaded
+ * from) in one of the following {@code format}s, which by default is
+ * determined from the file extension:
+ * <ul>
+ * <li>{@code jsonl} (or {@code json}): one JSON object per row, usually one per line</li>
+ * <li>{@code csv}: a header row naming the fields, then one row per line, where
+ *     values that look like numbers or booleans are converted accordingly</li>
+ * <li>{@code yaml} (or {@code yml}): one YAML document per row, separated by {@code ---}</li>
+ * </ul>
+ * Alternatively, the rows may be generated: {@code generate} maps parameter
+ * names to {@link Generator}s.  The ranges and value lists are combined as a
+ * cartesian product (the last one varying fastest), and random values are
+ * drawn from a generator seeded from {@code seed} and the row number, so a
+ * run can be repeated exactly.  The number of {@code rows} defaults to the
+ * size of the product, and is required if all the generators are random;
+ * if it exceeds the product, the product repeats.
+ * <p/>
+ * File and generated rows are produced lazily as they are consumed from
+ * {@link #iterator()}, so that very large datasets can be fed to a TestNG
+ * {@code @DataProvider} without loading them into memory.
+ */
 @JsonInclude(Include.NON_NULL)
 public class Provider {
     private String           description = null;
     private String[]         parameters  = null;
     private List<ObjectNode> data        = null;
+    private String           file        = null;
+    private String           format      = null;
+    private Map<String,Generator>
+                             generate    = null;
+    private Long             rows        = null;
+    private Long             seed        = null;
+    @JsonIgnore
+    private URL              source      = null;
 
     /*------------------------------------------------------------------------*
      * Generated setter/getters (edited for fluency)                          *
@@ -70,6 +115,90 @@ public class Provider {
         this.data = data;
         return this;
     }
+    /**
+     * @return the file
+     */
+    public String getFile() {
+        return file;
+    }
+    /**
+     * @param file the URL of the data file to set
+     * @return this
+     */
+    public Provider setFile(String file) {
+        this.file = file;
+        return this;
+    }
+    /**
+     * @return the format
+     */
+    public String getFormat() {
+        return format;
+    }
+    /**
+     * @param format the format of the data file to set
+     * @return this
+     */
+    public Provider setFormat(String format) {
+        this.format = format;
+        return this;
+    }
+    /**
+     * @return the generators
+     */
+    public Map<String, Generator> getGenerate() {
+        return generate;
+    }
+    /**
+     * @param generate the generators to set, by parameter name
+     * @return this
+     */
+    public Provider setGenerate(Map<String, Generator> generate) {
+        this.generate = generate;
+        return this;
+    }
+    /**
+     * @return the number of generated rows
+     */
+    public Long getRows() {
+        return rows;
+    }
+    /**
+     * @param rows the number of generated rows to set
+     * @return this
+     */
+    public Provider setRows(Long rows) {
+        this.rows = rows;
+        return this;
+    }
+    /**
+     * @return the random seed
+     */
+    public Long getSeed() {
+        return seed;
+    }
+    /**
+     * @param seed the random seed to set
+     * @return this
+     */
+    public Provider setSeed(Long seed) {
+        this.seed = seed;
+        return this;
+    }
+    /**
+     * @return the URL the provider was loaded from
+     */
+    public URL getSource() {
+        return source;
+    }
+    /**
+     * @param source the URL against which the {@code file} is resolved
+     * @return this
+     */
+    public Provider setSource(URL source) {
+        this.source = source;
+        return this;
+    }
     /*------------------------------------------------------------------------*
      * Getting the Object[][].                                                *
      *------------------------------------------------------------------------*/
@@ -77,22 +206,184 @@ public class Provider {
         return getObjects(parameters);
     }
     public Object[][] getObjects(String[] parameters) {
+        List<Object[]> rows = new ArrayList<>();
+        iterator(parameters).forEachRemaining(rows::add);
+        return rows.toArray(new Object[rows.size()][]);
+    }
+    /*------------------------------------------------------------------------*
+     * Getting the Iterator<Object[]>.                                        *
+     *------------------------------------------------------------------------*/
+    /**
+     * Returns the rows as an {@link Iterator}, as accepted by a TestNG
+     * {@code @DataProvider}.  Each row is an {@code Object[]} holding a
+     * single {@code List<JsonNode>} of the {@code parameters}.
+     * @return the row iterator
+     */
+    public Iterator<Object[]> iterator() {
+        return iterator(parameters);
+    }
+    public Iterator<Object[]> iterator(String[] parameters) {
         if (parameters==null || parameters.length==0) {
             throw new IllegalArgumentException("parameters not specified");
         }
-        return data.stream().map((object) ->
+        Iterator<ObjectNode> objects;
+        if (generate!=null) {
+            objects = generateRows();
+        } else if (file!=null) {
+            try {
+                objects = readFile();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            objects = data==null ? Collections.emptyIterator() : data.iterator();
+        }
+        return Iterators.transform(objects, (object) ->
         new Object[] {
           Arrays.asList(
             Arrays.stream(parameters).map(object::get).toArray(JsonNode[]::new)
           )
+        });
+    }
+    /*------------------------------------------------------------------------*
+     * Generating rows.                                                       *
+     *------------------------------------------------------------------------*/
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    /**
+     * Returns an iterator that generates one row at a time.  Row {@code i}
+     * takes the values of the enumerated generators from the digits of
+     * {@code i} in the mixed radix of their sizes, and seeds the random
+     * generators from {@code seed} and {@code i}, so any row can be produced
+     * independently of the others.
+     */
+    private Iterator<ObjectNode> generateRows() {
+        String[]    names      = generate.keySet().toArray(new String[generate.size()]);
+        Generator[] generators = generate.values().toArray(new Generator[generate.size()]);
+        long[]      sizes      = new long[generators.length];
+        long        product    = 1;
+        boolean     enumerated = false;
+        for (int g=0; g<generators.length; g++) {
+            sizes[g] = generators[g].size();
+            if (sizes[g]>=0) {
+                product = Math.multiplyExact(product, sizes[g]);
+                enumerated = true;
+            }
+        }
+        if (!enumerated && rows==null) {
+            throw new IllegalArgumentException("rows must be specified for random generators");
+        }
+        long count = rows!=null ? rows : product;
+        long space = product;
+        long base  = seed!=null ? seed : 0;
+        return new Iterator<ObjectNode>() {
+            private long i = 0;
+            @Override
+            public boolean hasNext() {
+                return i<count && space>0;
+            }
+            @Override
+            public ObjectNode next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                JsonNode[] values = new JsonNode[generators.length];
+                long index = i%space;
+                for (int g=generators.length-1; g>=0; g--) {
+                    if (sizes[g]>=0) {
+                        values[g] = generators[g].get(index%sizes[g]);
+                        index /= sizes[g];
+                    }
+                }
+                Random random = new Random(base+i*GOLDEN_GAMMA);
+                ObjectNode row = JsonNodeFactory.instance.objectNode();
+                for (int g=0; g<generators.length; g++) {
+                    row.set(names[g], values[g]!=null ? values[g] : generators[g].get(random));
+                }
+                i++;
+                return row;
+            }
+        };
+    }
+    /*------------------------------------------------------------------------*
+     * Reading data files.                                                    *
+     *------------------------------------------------------------------------*/
+    private static final JsonFactory json_factory = new JsonFactory();
+    private static final CsvFactory  csv_factory  = new CsvFactory();
+    private static final Pattern     NUMBER       = Pattern.compile("-?(0|[1-9]\\d*)(\\.\\d+)?([eE][-+]?\\d+)?");
+
+    /**
+     * Opens the {@code file} and returns an iterator that parses one row
+     * at a time, closing the file once the last row has been read.
+     */
+    private Iterator<ObjectNode> readFile() throws IOException {
+        URL url = source!=null ? new URL(source, file) : new URL(file);
+        String type = format!=null ? format : Files.getFileExtension(url.getPath());
+        JsonParser parser;
+        switch (type.toLowerCase()) {
+        case "jsonl":
+        case "json":
+        case "ndjson":
+            parser = json_factory.createParser(url);
+            break;
+        case "csv":
+            parser = csv_factory.createParser(url);
+            ((CsvParser)parser).setSchema(CsvSchema.emptySchema().withHeader());
+            break;
+        case "yaml":
+        case "yml":
+            parser = yaml_factory.createParser(url);
+            break;
+        default:
+            throw new IOException("unknown provider data format \""+type+"\" for "+url);
         }
-        ).toArray(Object[][]::new);
+        boolean csv = parser instanceof CsvParser;
+        MappingIterator<ObjectNode> rows = JsonComparator.mapper.readerFor(ObjectNode.class).readValues(parser);
+        return new Iterator<ObjectNode>() {
+            @Override
+            public boolean hasNext() {
+                if (rows.hasNext()) {
+                    return true;
+                }
+                try {
+                    rows.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return false;
+            }
+            @Override
+            public ObjectNode next() {
+                ObjectNode row = rows.next();
+                return csv ? coerce(row) : row;
+            }
+        };
+    }
+
+    /**
+     * CSV values are all text: converts those that look like (JSON) numbers
+     * or booleans into numeric or boolean nodes.
+     */
+    private static ObjectNode coerce(ObjectNode row) {
+        row.fields().forEachRemaining((field) -> {
+            String text = field.getValue().asText();
+            if (text.equals("true") || text.equals("false")) {
+                field.setValue(BooleanNode.valueOf(Boolean.parseBoolean(text)));
+            } else if (NUMBER.matcher(text).matches()) {
+                try {
+                    // a JSON number: let the parser pick int, long, big integer or double
+                    field.setValue(JsonComparator.mapper.readTree(text));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+        return row;
     }
     /*------------------------------------------------------------------------*
      * Test Sequence Factory -- loading from YAML.                            *
      *------------------------------------------------------------------------*/
-    private static final Map<String,Provider>     registry     = new HashMap<>();
-    private static final Set<URL>                 loaded       = new HashSet<>();
+    private static final Registry<Provider>       registry     = new Registry<>(Provider.class, (u,p) -> p.setSource(u));
     private static final YAMLFactory              yaml_factory = new YAMLFactory();
     private static final Loader                   loader       = new Loader();
     public static class Loader {
@@ -100,23 +391,28 @@ public class Provider {
             return Provider.get(id);
         }
     }
-    public static synchronized Loader load(URL u) throws IOException {
-        if (!loaded.contains(u)) {
-            System.out.println("loading "+u.toString());
-            YAMLParser parser = yaml_factory.createParser(u);
-            Map<String,Provider> tests = JsonComparator.mapper.readValue(parser, new TypeReference<Map<String,Provider>>() {});
-            tests.forEach((name,ts) -> registry.put(name, ts));
-            loaded.add(u);
-        }
+    public static Loader load(URL u) throws IOException {
+        registry.load(u);
         return loader;
     }
     public static Loader load(String resource) throws IOException {
         return load(Resources.getResource(resource+".yaml"));
     }
-    public static Provider get(String id) throws IOException {
-        if (!registry.containsKey(id)) {
-            throw new IOException("test id \""+id+"\" not found");
+    /**
+     * Loads several resources in parallel.
+     * @param resources the resource names (without the .yaml extension)
+     * @return the loader
+     * @throws IOException if any resource can not be loaded
+     */
+    public static Loader loadAll(String...resources) throws IOException {
+        List<URL> urls = new ArrayList<>();
+        for (String resource : resources) {
+            urls.add(Resources.getResource(resource+".yaml"));
         }
+        registry.loadAll(urls);
+        return loader;
+    }
+    public static Provider get(String id) throws IOException {
         return registry.get(id);
     }
     public static void forEach(BiConsumer<? super String,? super Provider> action) {
@@ -0,0 +1,160 @@
+package com.cleo.labs.resttest;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+/**
+ * A {@link Transport} that passes each request on to another transport, and
+ * records the request and its response in an archive, which a
+ * {@link ReplayServer} can later serve.
+ * <p/>
+ * The archive is a gzipped file of JSON lines, one per exchange, in the form
+ * <pre>
+ * {"request":  {"method":..., "uri":..., "path":..., "headers":..., "body":...},
+ *  "response": {"status":..., "type":..., "headers":..., "content":..., "base64":...}}
+ * </pre>
+ * where {@code content} is the raw response body, as text if it is valid
+ * UTF-8 without control characters (other than whitespace), or otherwise
+ * base64 encoded, with {@code base64} set to {@code true}.  The archive is complete once the
+ * transport is {@link #close() closed}.
+ */
+public class RecordingTransport implements Transport, Closeable {
+    private static final Pattern BINARY = Pattern.compile("[\\p{Cntrl}&&[^\\s]]");
+
+    private final Transport delegate;
+    private final Writer    archive;
+
+    /**
+     * Records the exchanges of {@code delegate} in the {@code archive} file.
+     * @param delegate the transport that sends the requests
+     * @param archive the archive file, which is overwritten
+     * @throws IOException if the archive can not be created
+     */
+    public RecordingTransport(Transport delegate, File archive) throws IOException {
+        this.delegate = delegate;
+        this.archive  = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(archive)), Charsets.UTF_8);
+    }
+
+    /*------------------------------------------------------------------------*
+     * Transport.                                                             *
+     *------------------------------------------------------------------------*/
+    @Override
+    public Response invoke(Request request) throws IOException {
+        return record(request, delegate.invoke(request));
+    }
+
+    @Override
+    public CompletableFuture<Response> invokeAsync(Request request, Executor executor) {
+        return delegate.invokeAsync(request, executor).thenApply((response) -> {
+            try {
+                return record(request, response);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Reads the response content, appends the exchange to the archive, and
+     * returns the response with its content replaced by the bytes read.
+     */
+    private Response record(Request request, Response response) throws IOException {
+        byte[] content;
+        try (InputStream in = response.openBody()) {
+            content = ByteStreams.toByteArray(in);
+        }
+        response.setContent(new ByteArrayInputStream(content));
+
+        ObjectNode exchange = JsonNodeFactory.instance.objectNode();
+        ObjectNode req = (ObjectNode)request.asJson();
+        req.put("uri", request.getURI());
+        exchange.set("request", req);
+        ObjectNode resp = exchange.putObject("response");
+        resp.put("status", response.getStatus());
+        if (response.getType()!=null) {
+            resp.put("type", response.getType());
+        }
+        if (response.getHeaders()!=null) {
+            resp.set("headers", JsonComparator.mapper.convertValue(response.getHeaders(), JsonNode.class));
+        }
+        if (response.getCookies()!=null) {
+            resp.set("cookies", JsonComparator.mapper.convertValue(response.getCookies(), JsonNode.class));
+        }
+        String text = text(content);
+        if (text==null) {
+            resp.put("content", content);
+            resp.put("base64", true);
+        } else {
+            resp.put("content", text);
+        }
+        String line = JsonComparator.mapper.writeValueAsString(exchange);
+        synchronized (archive) {
+            archive.write(line);
+            archive.write('\n');
+        }
+        return response;
+    }
+
+    /**
+     * Decodes content as text, unless it is not valid UTF-8 or contains
+     * control characters other than whitespace.
+     * @return the text, or {@code null} if the content is to be recorded
+     * in base64
+     */
+    private static String text(byte[] content) {
+        try {
+            String text = Charsets.UTF_8.newDecoder()
+                                        .onMalformedInput(CodingErrorAction.REPORT)
+                                        .onUnmappableCharacter(CodingErrorAction.REPORT)
+                                        .decode(ByteBuffer.wrap(content))
+                                        .toString();
+            return BINARY.matcher(text).find() ? null : text;
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finishes and closes the archive.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (archive) {
+            archive.close();
+        }
+    }
+
+    /**
+     * Returns the key under which an exchange is recorded and replayed: the
+     * method, and the path and query of the URI.
+     * @param method the request method
+     * @param uri the request URI
+     * @return the key
+     */
+    static String key(String method, String uri) {
+        URI u = URI.create(uri);
+        String path = u.getRawPath()==null || u.getRawPath().isEmpty() ? "/" : u.getRawPath();
+        return method+" "+path+(u.getRawQuery()!=null ? "?"+u.getRawQuery() : "");
+    }
+}
@@ -0,0 +1,236 @@
+package com.cleo.labs.resttest;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+
+/**
+ * A thread-safe registry of definitions (such as {@link TestSequence}s or
+ * {@link Provider}s) loaded from YAML files, each of which maps ids to
+ * definitions.
+ * <p/>
+ * Loading a file only indexes it: the file is scanned once as a token stream,
+ * and the tokens of each definition are buffered under its id.  A definition
+ * is bound to its class (and prepared, e.g. compiled) the first time it is
+ * requested with {@link #get(String)}.  Each file is loaded at most once, even
+ * when requested concurrently, and {@link #loadAll(Collection)} loads several
+ * files in parallel.  As before, an id defined in more than one file refers
+ * to the definition loaded last: among the files of one {@code loadAll}, the
+ * last in the list, whichever is scanned first.
+ * @param <T> the definition class
+ */
+public class Registry<T> {
+    private static final YAMLFactory yaml_factory = new YAMLFactory();
+
+    private final Class<T>                                 type;
+    private final BiFunction<URL,T,T>                      prepare;
+    private final ConcurrentMap<String,Entry>              entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<URL,CompletableFuture<Void>> loaded  = new ConcurrentHashMap<>();
+
+    /**
+     * A definition, held as buffered tokens until it is first requested.
+     */
+    private class Entry {
+        private final URL   url;
+        private TokenBuffer tokens;
+        private volatile T  value;
+        private Entry(URL url, TokenBuffer tokens) {
+            this.url    = url;
+            this.tokens = tokens;
+        }
+        private T get() throws IOException {
+            T result = value;
+            if (result==null) {
+                synchronized (this) {
+                    result = value;
+                    if (result==null) {
+                        try (JsonParser parser = tokens.asParser(JsonComparator.mapper)) {
+                            result = prepare.apply(url, JsonComparator.mapper.readValue(parser, type));
+                        }
+                        value  = result;
+                        tokens = null;
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Creates a registry of definitions of class {@code type}.
+     * @param type the definition class
+     * @param prepare applied to each definition once it is bound, with
+     * the URL of the file it was loaded from
+     */
+    public Registry(Class<T> type, BiFunction<URL,T,T> prepare) {
+        this.type    = type;
+        this.prepare = prepare;
+    }
+
+    /*------------------------------------------------------------------------*
+     * Loading.                                                               *
+     *------------------------------------------------------------------------*/
+    /**
+     * Loads (indexes) a file, unless it is already loaded, waiting for
+     * a concurrent load of the same file to complete if need be.
+     * @param u the file URL
+     * @throws IOException if the file can not be read
+     */
+    public void load(URL u) throws IOException {
+        loadAll(Collections.singletonList(u));
+    }
+
+    /**
+     * Loads several files in parallel.  The files are scanned concurrently,
+     * but their definitions are registered in the order of {@code urls}, so
+     * that a duplicate id resolves the same way on every run.
+     * @param urls the file URLs
+     * @throws IOException if any file can not be read
+     */
+    public void loadAll(Collection<URL> urls) throws IOException {
+        List<CompletableFuture<Void>>                 waits     = new ArrayList<>();
+        Map<URL,CompletableFuture<Void>>              published = new LinkedHashMap<>();
+        Map<URL,CompletableFuture<Map<String,Entry>>> scans     = new LinkedHashMap<>();
+        for (URL u : urls) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            CompletableFuture<Void> existing = loaded.putIfAbsent(u, future);
+            if (existing!=null) {
+                waits.add(existing);
+            } else {
+                waits.add(future);
+                published.put(u, future);
+                scans.put(u, CompletableFuture.supplyAsync(() -> scan(u)));
+            }
+        }
+        scans.forEach((u,scan) -> {
+            CompletableFuture<Void> future = published.get(u);
+            try {
+                entries.putAll(scan.join());
+                future.complete(null);
+            } catch (CompletionException e) {
+                // forget the failure so that a later load can try again
+                loaded.remove(u, future);
+                Throwable cause = e.getCause();
+                future.completeExceptionally(cause instanceof UncheckedIOException ? cause.getCause() : cause);
+            }
+        });
+        join(CompletableFuture.allOf(waits.toArray(new CompletableFuture[waits.size()])));
+    }
+
+    private static void join(CompletableFuture<Void> future) throws IOException {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Opens a parser on a file, through the {@link PlanCache} if one is
+     * configured.
+     * @param u the file URL
+     * @return the parser
+     * @throws IOException if the file can not be opened
+     */
+    protected JsonParser open(URL u) throws IOException {
+        PlanCache cache = PlanCache.getDefault();
+        if (cache!=null) {
+            return cache.open(u);
+        }
+        return yaml_factory.createParser(u);
+    }
+
+    /**
+     * Scans a file, buffering the tokens of each definition without binding
+     * it.
+     * @return the definitions found, by id
+     */
+    private Map<String,Entry> scan(URL u) {
+        System.out.println("loading "+u.toString());
+        Map<String,Entry> found = new LinkedHashMap<>();
+        try (JsonParser parser = open(u)) {
+            JsonToken token = parser.nextToken();
+            if (token!=null && token!=JsonToken.START_OBJECT) {
+                throw new IOException(u+": expected a map of ids to definitions");
+            }
+            while (token!=null && parser.nextToken()==JsonToken.FIELD_NAME) {
+                String id = parser.getCurrentName();
+                parser.nextToken();
+                TokenBuffer tokens = new TokenBuffer(JsonComparator.mapper, false);
+                tokens.copyCurrentStructure(parser);
+                found.put(id, new Entry(u, tokens));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return found;
+    }
+
+    /*------------------------------------------------------------------------*
+     * Lookup.                                                                *
+     *------------------------------------------------------------------------*/
+    /**
+     * Returns a definition, binding it on first use.
+     * @param id the definition id
+     * @return the definition
+     * @throws IOException if the id is not found or the definition is invalid
+     */
+    public T get(String id) throws IOException {
+        Entry entry = entries.get(id);
+        if (entry==null) {
+            throw new IOException("test id \""+id+"\" not found");
+        }
+        return entry.get();
+    }
+
+    /**
+     * @param id the definition id
+     * @return {@code true} if the id has been loaded
+     */
+    public boolean contains(String id) {
+        return entries.containsKey(id);
+    }
+
+    /**
+     * @return the ids loaded so far
+     */
+    public Set<String> ids() {
+        return entries.keySet();
+    }
+
+    /**
+     * Iterates over all the definitions loaded so far, binding any that
+     * have not yet been requested.
+     * @param action the action
+     */
+    public void forEach(BiConsumer<? super String,? super T> action) {
+        entries.forEach((id,entry) -> {
+            try {
+                action.accept(id, entry.get());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+}
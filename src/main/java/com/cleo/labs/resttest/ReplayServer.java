@@ -0,0 +1,84 @@
+package com.cleo.labs.resttest;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Charsets;
+
+/**
+ * A {@link StubServer} that replays the responses recorded by a
+ * {@link RecordingTransport}.  Requests are matched on their method, path
+ * and query.  The responses recorded for the same request are replayed in
+ * order, and the last one is repeated once they are used up, so a recorded
+ * sequence can be replayed any number of times.  A request that was never
+ * recorded gets a 404 response.
+ */
+public class ReplayServer extends StubServer {
+    private final Map<String,Deque<Recording>> recordings = new HashMap<>();
+
+    /**
+     * Loads the recordings from an archive.
+     * @param archive the archive written by a {@link RecordingTransport}
+     * @throws IOException if the archive can not be read
+     */
+    public ReplayServer(File archive) throws IOException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(archive)), Charsets.UTF_8))) {
+            for (String line=in.readLine(); line!=null; line=in.readLine()) {
+                if (line.isEmpty()) continue;
+                JsonNode exchange = JsonComparator.mapper.readTree(line);
+                JsonNode request  = exchange.get("request");
+                String key = RecordingTransport.key(request.path("method").asText("GET"), request.path("uri").asText("/"));
+                recordings.computeIfAbsent(key, (k)->new ArrayDeque<>()).add(new Recording(exchange.get("response")));
+            }
+        }
+    }
+
+    /**
+     * A recorded response: the status, type, headers and cookies, and the
+     * raw content.
+     */
+    private static class Recording {
+        private final Response response;
+        private final byte[]   content;
+        private Recording(JsonNode recorded) throws IOException {
+            JsonNode body = recorded.path("content");
+            response = JsonComparator.mapper.convertValue(
+                    ((ObjectNode)recorded.deepCopy()).without("content").without("base64"), Response.class);
+            content  = recorded.path("base64").asBoolean()
+                     ? body.binaryValue()
+                     : body.asText().getBytes(Charsets.UTF_8);
+        }
+        private Response replay() {
+            return new Response().setStatus(response.getStatus())
+                                 .setType(response.getType())
+                                 .setHeaders(response.getHeaders())
+                                 .setCookies(response.getCookies())
+                                 .setContent(new ByteArrayInputStream(content));
+        }
+    }
+
+    @Override
+    protected Response respond(String method, String uri, byte[] body) throws IOException {
+        Deque<Recording> queue = recordings.get(RecordingTransport.key(method, uri));
+        if (queue==null) {
+            return new Response().setStatus(404)
+                                 .setType("text/plain")
+                                 .setBody(JsonComparator.mapper.convertValue("no recording for "+method+" "+uri, JsonNode.class));
+        }
+        synchronized (queue) {
+            return (queue.size()>1 ? queue.poll() : queue.peek()).replay();
+        }
+    }
+}
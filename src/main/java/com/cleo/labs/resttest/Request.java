@@ -1,20 +1,24 @@
 package com.cleo.labs.resttest;
 
+import java.io.IOException;
+import java.net.URI;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.jayway.restassured.RestAssured;
 import com.jayway.restassured.specification.RequestSender;
-import com.jayway.restassured.specification.RequestSpecification;
 
 @JsonInclude(Include.NON_NULL)
 public class Request {
     private static String baseURI  = null;
     private static int    port     = -1;
     private static String basePath = null;
+    private static Transport
+                          transport = new RestAssuredTransport();
 
     public interface MethodInvoker {
         com.jayway.restassured.response.Response invoke(RequestSender req, String path);
@@ -48,33 +52,60 @@ public class Request {
     /*------------------------------------------------------------------------*
      * Doing the method, convert Request to Response.                         *
      *------------------------------------------------------------------------*/
-    public com.jayway.restassured.response.Response invoke() {
-        RequestSpecification reqspec = RestAssured.given();
-        if (baseURI!=null) {
-            reqspec = reqspec.baseUri(baseURI);
-        }
-        if (port>=0) {
-            reqspec = reqspec.port(port);
-        }
-        if (basePath!=null) {
-            reqspec = reqspec.basePath(basePath);
-        }
-        if (username!=null && password!=null) {
-            reqspec = reqspec.auth().preemptive().basic(username, password);
-        }
-        if (headers!=null) {
-            reqspec = reqspec.headers(headers);
+    /**
+     * Sends the request using the current {@link Transport}.  The body of
+     * the {@link Response} is left unparsed (see {@link Response#parseBody()}).
+     * @return the response
+     * @throws IOException if the request fails
+     */
+    public Response invoke() throws IOException {
+        return transport.invoke(this);
+    }
+    /**
+     * Sends the request asynchronously using the current {@link Transport}.
+     * @return the future response
+     */
+    public CompletableFuture<Response> invokeAsync() {
+        return transport.invokeAsync(this);
+    }
+    /**
+     * Sends the request asynchronously using the current {@link Transport},
+     * making a blocking round trip (if the transport needs one) on
+     * {@code executor}.
+     * @param executor the executor for a blocking round trip
+     * @return the future response
+     */
+    public CompletableFuture<Response> invokeAsync(Executor executor) {
+        return transport.invokeAsync(this, executor);
+    }
+    /**
+     * Returns the full URI of the request: the {@code path} itself if it is
+     * absolute, otherwise the {@code path} appended to the {@code baseURI}
+     * (with {@code port} and {@code basePath}, if set).
+     * @return the request URI
+     */
+    public String getURI() {
+        String p = path==null ? "" : path;
+        if (p.matches("^[a-zA-Z][a-zA-Z0-9+.-]*://.*")) {
+            return p;
         }
-        if (cookies!=null) {
-            reqspec = reqspec.cookies(cookies);
+        URI base = URI.create(baseURI==null ? "http://localhost" : baseURI);
+        StringBuilder uri = new StringBuilder();
+        uri.append(base.getScheme()).append("://").append(base.getHost());
+        int p0 = port>=0 ? port : base.getPort();
+        if (p0>=0) {
+            uri.append(':').append(p0);
         }
-        if (body!=null) {
-            if (type!=null) {
-                reqspec = reqspec.contentType(type);
-            }
-            reqspec = reqspec.body(body.toString());
+        uri.append(join(join(base.getRawPath(), basePath), p));
+        return uri.toString();
+    }
+    private static String join(String a, String b) {
+        if (a==null || a.isEmpty()) {
+            return b==null ? "" : b;
+        } else if (b==null || b.isEmpty()) {
+            return a;
         }
-        return method.getMethod().invoke(reqspec, path);
+        return a.replaceAll("/+$", "")+"/"+b.replaceAll("^/+", "");
     }
     /*------------------------------------------------------------------------*
      * JSON converter.                                                        *
@@ -121,6 +152,18 @@ public class Request {
     public static void setBasePath(String basePath) {
         Request.basePath = basePath;
     }
+    /**
+     * @return the transport
+     */
+    public static Transport getTransport() {
+        return transport;
+    }
+    /**
+     * @param transport the transport to set
+     */
+    public static void setTransport(Transport transport) {
+        Request.transport = transport;
+    }
     /**
      * @return the username
      */
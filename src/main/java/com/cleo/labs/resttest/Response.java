@@ -1,6 +1,10 @@
 package com.cleo.labs.resttest;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
@@ -8,6 +12,9 @@ import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
 
 @JsonInclude(Include.NON_NULL)
 public class Response {
@@ -17,6 +24,9 @@ public class Response {
     private Map<String,String> cookies  = null;
     private JsonNode           body     = null;
     private String             schema   = null;
+    private Timing             timing   = null;
+    @JsonIgnore
+    private InputStream        content  = null;
     @JsonIgnore
     private com.jayway.restassured.response.Response
                                response = null;
@@ -28,34 +38,133 @@ public class Response {
     }
 
     public Response(com.jayway.restassured.response.Response response) {
+        this(response, true);
+    }
+
+    /**
+     * Creates a {@code Response} from a RestAssured response.  If {@code parse}
+     * is {@code false} the body is left unparsed ({@link #getBody()} returns
+     * {@code null}) to be read later with {@link #parseBody()}, or as a stream
+     * with {@link #openBody()}.
+     * @param response the RestAssured response
+     * @param parse {@code false} to leave the body unparsed
+     */
+    public Response(com.jayway.restassured.response.Response response, boolean parse) {
         setStatus(response.statusCode());
         setType(response.contentType());
         response.getHeaders().forEach((h)->setHeader(h.getName(),h.getValue()));
         response.getCookies().forEach((name,value)->setCookie(name,value));
+        setResponse(response);
+        setContent(response.asInputStream());
+        if (parse) {
+            parseBody();
+        }
+    }
+    /*------------------------------------------------------------------------*
+     * Reading the body.                                                      *
+     *------------------------------------------------------------------------*/
+    /**
+     * Parses the raw content into the {@code body}, unless it has already
+     * been parsed.  A JSON body is parsed into a tree, otherwise the body
+     * becomes a text node, or a binary node if it is not printable.  The
+     * content stream is consumed and closed.
+     * @return this
+     */
+    public Response parseBody() {
+        if (body!=null) {
+            return this;
+        }
+        byte[] bytes = new byte[0];
+        if (content!=null) {
+            try (InputStream in = content) {
+                bytes = ByteStreams.toByteArray(in);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            content = null;
+        }
         JsonNode body = null;
-        if (response.contentType().equals("application/json")) {
+        if (isJson()) {
             try {
-                body = JsonComparator.mapper.readTree(response.asByteArray());
+                body = JsonComparator.mapper.readTree(bytes);
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
         if (body==null) {
-            String text = response.asString();
+            String text = new String(bytes, Charsets.UTF_8);
             if (text.matches(".*[^\\p{Print}\\p{Space}].*")) {
-                body = JsonNodeFactory.instance.binaryNode(response.asByteArray());
+                body = JsonNodeFactory.instance.binaryNode(bytes);
             } else {
                 body = JsonNodeFactory.instance.textNode(text);
             }
         }
         setBody(body);
-        setResponse(response);
+        return this;
+    }
+    /**
+     * Returns the unparsed response content as a stream, which the caller
+     * must close.  The content may only be read once, and is not available
+     * once the body has been parsed.
+     * @return the body stream
+     */
+    public InputStream openBody() {
+        InputStream in = content;
+        content = null;
+        return in==null ? new ByteArrayInputStream(new byte[0]) : in;
+    }
+    /**
+     * Releases the unparsed response content, if any, reading it to the end
+     * first so that a pooled connection can be reused.  The body, if it has
+     * been parsed, remains available.
+     */
+    public void close() {
+        if (content!=null) {
+            try (InputStream in = content) {
+                ByteStreams.copy(in, ByteStreams.nullOutputStream());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            content = null;
+        }
+    }
+    /**
+     * @return {@code true} if the content type is JSON
+     */
+    public boolean isJson() {
+        return "application/json".equals(type);
     }
     /*------------------------------------------------------------------------*
      * JSON converter.                                                        *
      *------------------------------------------------------------------------*/
+    /**
+     * Returns the {@code Response} as a {@link JsonNode}, as Jackson would
+     * serialize it, except that the {@code body} is shared rather than
+     * copied, so the cost does not depend on the size of the body.
+     * @return the JSON representation
+     */
     public JsonNode asJson() {
-        return JsonComparator.mapper.convertValue(this, JsonNode.class);
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        node.put("status", status);
+        if (type!=null) {
+            node.put("type", type);
+        }
+        if (headers!=null) {
+            node.set("headers", JsonComparator.mapper.convertValue(headers, JsonNode.class));
+        }
+        if (cookies!=null) {
+            node.set("cookies", JsonComparator.mapper.convertValue(cookies, JsonNode.class));
+        }
+        if (body!=null) {
+            node.set("body", body);
+        }
+        if (schema!=null) {
+            node.put("schema", schema);
+        }
+        if (timing!=null) {
+            node.set("timing", timing.asJson());
+        }
+        return node;
     }
     /*------------------------------------------------------------------------*
      * Generated setter/getters (edited for fluency)                          *
@@ -81,10 +190,18 @@ public class Response {
         return type;
     }
     /**
-     * @param type the type to set
+     * Sets the type, normalized to the lower case MIME type without its
+     * parameters, so that a full {@code Content-Type} such as
+     * {@code application/json; charset=UTF-8} is stored as
+     * {@code application/json} whichever transport received it.
+     * @param type the type (or {@code Content-Type}) to set
      * @return this
      */
     public Response setType(String type) {
+        if (type!=null) {
+            int semicolon = type.indexOf(';');
+            type = (semicolon<0 ? type : type.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+        }
         this.type = type;
         return this;
     }
@@ -144,6 +261,34 @@ public class Response {
         this.schema = schema;
         return this;
     }
+    /**
+     * @return the timing of the step that produced this response
+     */
+    public Timing getTiming() {
+        return timing;
+    }
+    /**
+     * @param timing the timing to set
+     * @return this
+     */
+    public Response setTiming(Timing timing) {
+        this.timing = timing;
+        return this;
+    }
+    /**
+     * @return the unparsed content
+     */
+    public InputStream getContent() {
+        return content;
+    }
+    /**
+     * @param content the unparsed content to set
+     * @return this
+     */
+    public Response setContent(InputStream content) {
+        this.content = content;
+        return this;
+    }
     /**
      * @return the response
      */
@@ -0,0 +1,40 @@
+package com.cleo.labs.resttest;
+
+import com.jayway.restassured.RestAssured;
+import com.jayway.restassured.specification.RequestSpecification;
+
+/**
+ * The default {@link Transport}, which builds a RestAssured request
+ * specification for each {@link Request}.
+ */
+public class RestAssuredTransport implements Transport {
+    @Override
+    public Response invoke(Request request) {
+        RequestSpecification reqspec = RestAssured.given();
+        if (Request.getBaseURI()!=null) {
+            reqspec = reqspec.baseUri(Request.getBaseURI());
+        }
+        if (Request.getPort()>=0) {
+            reqspec = reqspec.port(Request.getPort());
+        }
+        if (Request.getBasePath()!=null) {
+            reqspec = reqspec.basePath(Request.getBasePath());
+        }
+        if (request.getUsername()!=null && request.getPassword()!=null) {
+            reqspec = reqspec.auth().preemptive().basic(request.getUsername(), request.getPassword());
+        }
+        if (request.getHeaders()!=null) {
+            reqspec = reqspec.headers(request.getHeaders());
+        }
+        if (request.getCookies()!=null) {
+            reqspec = reqspec.cookies(request.getCookies());
+        }
+        if (request.getBody()!=null) {
+            if (request.getType()!=null) {
+                reqspec = reqspec.contentType(request.getType());
+            }
+            reqspec = reqspec.body(request.getBody().toString());
+        }
+        return new Response(request.getMethod().getMethod().invoke(reqspec, request.getPath()), false);
+    }
+}
@@ -0,0 +1,282 @@
+package com.cleo.labs.resttest;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.script.ScriptException;
+
+/**
+ * A pool of pre-initialized {@link Scripting} contexts for
+ * {@link JsonComparator}.  Creating a context and evaluating the helper
+ * prelude ({@code success}, {@code failure}, {@code expect}, {@code yaml},
+ * {@code debug} and so on) is expensive, so contexts are handed out by
+ * {@link #acquire()} and reset to their post-prelude global state by
+ * {@link #release(Entry) release}.
+ * <p/>
+ * The pool never blocks: if no idle context is available a new one is
+ * created, and at most {@code size} idle contexts are retained.
+ * <p/>
+ * The script engine is chosen by the {@code resttest.scripting} system
+ * property: {@code nashorn} or {@code graaljs}.  The default is
+ * {@code nashorn} where it is available: its classes are in
+ * {@code src/nashorn/java}, compiled (by the {@code nashorn} profile) only on
+ * JDKs that include Nashorn, and loaded reflectively.  Elsewhere the
+ * default is {@code graaljs}.
+ */
+public class ScriptEnginePool {
+    public  static final String              PROPERTY                  = "resttest.scripting";
+    public  static final String              NASHORN                   = "nashorn";
+    public  static final String              GRAALJS                   = "graaljs";
+    public  static final int                 DEFAULT_SIZE              = 8;
+    public  static final int                 DEFAULT_SCRIPT_CACHE_SIZE = 1000;
+
+    private static final String              NASHORN_CLASS             = "com.cleo.labs.resttest.NashornScripting";
+
+    private static final ScriptEnginePool    default_pool              = new ScriptEnginePool(DEFAULT_SIZE);
+    private static final ConcurrentMap<Integer,ScriptEnginePool>
+                                             sized_pools               = new ConcurrentHashMap<>();
+
+    private final int                  size;
+    private final int                  scriptCacheSize;
+    private final Scripting.Factory    factory;
+    private final BlockingQueue<Entry> idle;
+    private final AtomicLong           created       = new AtomicLong();
+    private final AtomicLong           creationNanos = new AtomicLong();
+    private final AtomicLong           acquired      = new AtomicLong();
+    private final AtomicLong           reused        = new AtomicLong();
+
+    /**
+     * A pooled scripting context.
+     */
+    public static class Entry {
+        private final Scripting scripting;
+        private       int       uses = 0;
+
+        private Entry(Scripting scripting) {
+            this.scripting = scripting;
+        }
+        /**
+         * @return the scripting context
+         */
+        public Scripting getScripting() {
+            return scripting;
+        }
+        /**
+         * @return the number of times this context has been acquired
+         */
+        public int getUses() {
+            return uses;
+        }
+    }
+
+    /**
+     * Returns the factory for a named script engine.
+     * @param name {@code nashorn} or {@code graaljs}
+     * @return the factory
+     * @throws IllegalArgumentException if the name is not known
+     */
+    public static Scripting.Factory factory(String name) {
+        switch (name.toLowerCase()) {
+        case NASHORN:
+            return nashorn();
+        case GRAALJS:
+            return GraalScripting::new;
+        default:
+            throw new IllegalArgumentException("unknown script engine "+name+": use "+NASHORN+" or "+GRAALJS);
+        }
+    }
+
+    /**
+     * @return the engine used unless {@code resttest.scripting} is set:
+     * {@code nashorn} if it is available, otherwise {@code graaljs}
+     */
+    public static String getDefaultEngine() {
+        try {
+            Class.forName("jdk.nashorn.api.scripting.JSObject");
+            Class.forName(NASHORN_CLASS);
+            return NASHORN;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return GRAALJS;
+        }
+    }
+
+    private static Scripting.Factory nashorn() {
+        Constructor<? extends Scripting> constructor;
+        try {
+            constructor = Class.forName(NASHORN_CLASS).asSubclass(Scripting.class).getConstructor(int.class);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new IllegalArgumentException("script engine "+NASHORN+" is not available on this JVM: use "+GRAALJS, e);
+        }
+        return (scriptCacheSize) -> {
+            try {
+                return constructor.newInstance(scriptCacheSize);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof ScriptException) {
+                    throw (ScriptException)e.getCause();
+                }
+                throw new IllegalStateException("script engine "+NASHORN+" failed", e.getCause());
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("script engine "+NASHORN+" failed", e);
+            }
+        };
+    }
+
+    /**
+     * Creates a new pool retaining at most {@code size} idle engines.
+     * @param size the maximum number of idle engines
+     */
+    public ScriptEnginePool(int size) {
+        this(size, DEFAULT_SCRIPT_CACHE_SIZE);
+    }
+
+    /**
+     * Creates a new pool retaining at most {@code size} idle engines,
+     * each caching at most {@code scriptCacheSize} compiled scripts.
+     * @param size the maximum number of idle engines
+     * @param scriptCacheSize the maximum number of compiled scripts per engine
+     */
+    public ScriptEnginePool(int size, int scriptCacheSize) {
+        this(size, scriptCacheSize, factory(System.getProperty(PROPERTY, getDefaultEngine())));
+    }
+
+    /**
+     * Creates a new pool retaining at most {@code size} idle contexts,
+     * each caching at most {@code scriptCacheSize} compiled scripts,
+     * created by {@code factory}.
+     * @param size the maximum number of idle contexts
+     * @param scriptCacheSize the maximum number of compiled scripts per context
+     * @param factory the script engine, e.g. from {@link #factory(String)}
+     */
+    public ScriptEnginePool(int size, int scriptCacheSize, Scripting.Factory factory) {
+        this.size            = size;
+        this.scriptCacheSize = scriptCacheSize;
+        this.factory         = factory;
+        this.idle            = new LinkedBlockingQueue<>(Math.max(1, size));
+    }
+
+    /**
+     * @return the pool used by {@link JsonComparator#JsonComparator()}
+     */
+    public static ScriptEnginePool getDefault() {
+        return default_pool;
+    }
+
+    /**
+     * Returns a shared pool like the default pool, but whose contexts cache
+     * at most {@code scriptCacheSize} compiled scripts.
+     * @param scriptCacheSize the maximum number of compiled scripts per context
+     * @return the pool used by {@link JsonComparator#JsonComparator(int)}
+     */
+    public static ScriptEnginePool getDefault(int scriptCacheSize) {
+        if (scriptCacheSize==DEFAULT_SCRIPT_CACHE_SIZE) {
+            return default_pool;
+        }
+        return sized_pools.computeIfAbsent(scriptCacheSize, (n) -> new ScriptEnginePool(DEFAULT_SIZE, n));
+    }
+
+    private Entry create() {
+        long start = System.nanoTime();
+        try {
+            Entry entry = new Entry(factory.create(scriptCacheSize));
+            created.incrementAndGet();
+            return entry;
+        } catch (ScriptException e) {
+            throw new IllegalStateException("script engine prelude failed", e);
+        } finally {
+            creationNanos.addAndGet(System.nanoTime()-start);
+        }
+    }
+
+    /**
+     * Creates idle engines until {@code count} are available (or the pool is full).
+     * @param count the number of engines to pre-initialize
+     * @return this
+     */
+    public ScriptEnginePool prewarm(int count) {
+        while (idle.size()<Math.min(count, size)) {
+            if (!idle.offer(create())) {
+                break;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Hands out an idle engine, or a newly created one if none are idle.
+     * @return the engine entry
+     */
+    public Entry acquire() {
+        Entry entry = idle.poll();
+        if (entry==null) {
+            entry = create();
+        } else {
+            reused.incrementAndGet();
+        }
+        entry.uses++;
+        acquired.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Resets an engine and returns it to the pool.  If the pool is full
+     * the engine is discarded.
+     * @param entry the engine entry
+     */
+    public void release(Entry entry) {
+        try {
+            entry.scripting.reset();
+        } catch (Exception e) {
+            JsonComparator.logger.debug("discarding engine that failed to reset", e);
+            entry.scripting.close();
+            return;
+        }
+        if (!idle.offer(entry)) {
+            entry.scripting.close();
+        }
+    }
+
+    /*------------------------------------------------------------------------*
+     * Statistics.                                                            *
+     *------------------------------------------------------------------------*/
+    /**
+     * @return the maximum number of idle engines retained
+     */
+    public int getSize() {
+        return size;
+    }
+    /**
+     * @return the number of idle engines
+     */
+    public int getIdle() {
+        return idle.size();
+    }
+    /**
+     * @return the number of engines created
+     */
+    public long getCreated() {
+        return created.get();
+    }
+    /**
+     * @return the total time spent creating engines, in milliseconds
+     */
+    public double getCreationTime() {
+        return creationNanos.get()/1e6;
+    }
+    /**
+     * @return the number of times an engine was handed out
+     */
+    public long getAcquired() {
+        return acquired.get();
+    }
+    /**
+     * @return the number of times an idle engine was reused
+     */
+    public long getReused() {
+        return reused.get();
+    }
+}
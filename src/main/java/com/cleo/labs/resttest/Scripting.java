@@ -0,0 +1,104 @@
+package com.cleo.labs.resttest;
+
+import javax.script.ScriptException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.cache.CacheStats;
+
+/**
+ * The script engine behind a {@link JsonComparator}: a single JavaScript
+ * global context with the {@link JsonComparator#PRELUDE prelude} evaluated,
+ * handed out and reset by a {@link ScriptEnginePool}.  Implementations are
+ * {@code NashornScripting} (the default, where the JDK includes Nashorn) and
+ * {@link GraalScripting}, chosen with the {@code resttest.scripting} system
+ * property (see {@link ScriptEnginePool}).
+ * <p/>
+ * Results are returned as Java values: {@code null} for {@code null} and
+ * {@code undefined}, strings, numbers and booleans, Java objects (such as
+ * {@link JsonComparator.Result}) as themselves, a {@link JsonNode} for a
+ * view bound by {@link #putJson(String, JsonNode) putJson}, script arrays
+ * and objects as {@link java.util.List}s and {@link java.util.Map}s (without
+ * their function members), and otherwise a value that
+ * {@link JsonComparator#mapper} can convert to a {@code JsonNode}.
+ */
+public interface Scripting extends AutoCloseable {
+    /**
+     * Creates a new scripting context, with the prelude evaluated.
+     */
+    public interface Factory {
+        /**
+         * @param scriptCacheSize the maximum number of compiled scripts retained
+         * @return a new scripting context
+         * @throws ScriptException if the prelude fails
+         */
+        Scripting create(int scriptCacheSize) throws ScriptException;
+    }
+
+    /**
+     * Evaluates {@code script} in the global context, compiling it on first
+     * use.
+     * @param script the script
+     * @return the result, as a Java value
+     * @throws ScriptException if the script fails to compile or run
+     */
+    Object eval(String script) throws ScriptException;
+
+    /**
+     * Evaluates {@code script} in the global context without caching its
+     * compiled form, for one-off scripts such as the JSON literals bound by
+     * {@link JsonComparator#putJson(String, JsonNode) putJson}, which would
+     * otherwise fill the cache and evict the template scripts.
+     * @param script the script
+     * @return the result, as a Java value
+     * @throws ScriptException if the script fails to compile or run
+     */
+    Object evalUncached(String script) throws ScriptException;
+
+    /**
+     * Returns the value of a global variable, without evaluating a script.
+     * @param var the variable name
+     * @return the value, as a Java value, or {@code null} if it is not set
+     */
+    Object get(String var);
+
+    /**
+     * Returns the value of a global variable as the engine holds it, without
+     * converting it, so that it can be compared (with {@code equals}) to an
+     * earlier value to tell whether a script has since reassigned the
+     * variable.
+     * @param var the variable name
+     * @return the engine value
+     */
+    Object raw(String var);
+
+    /**
+     * Sets a global variable to a Java value.
+     * @param var the variable name
+     * @param value the value
+     */
+    void put(String var, Object value);
+
+    /**
+     * Sets a global variable to a lazy, read-only view of {@code json}, or
+     * to {@code undefined} for a {@code null} or missing node.
+     * @param var the variable name
+     * @param json the node
+     */
+    void putJson(String var, JsonNode json);
+
+    /**
+     * Restores the global variables to their post-prelude state.
+     */
+    void reset();
+
+    /**
+     * @return the hit/miss statistics of the compiled script cache
+     */
+    CacheStats getScriptCacheStats();
+
+    /**
+     * Releases the context, which may not be used afterwards.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,289 @@
+package com.cleo.labs.resttest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * The dependencies between the steps of a {@link TestSequence}, as used to
+ * run independent steps concurrently (see {@link TestSequence#setParallel(Boolean)}).
+ * <p/>
+ * Each step is analyzed for the script variables it reads and writes, in its
+ * {@code before} and {@code after} scripts and the ${scripts} of its
+ * {@code request} and {@code response} templates.  The analysis is lexical
+ * and conservative: any identifier that is not a property access counts as a
+ * read, and {@code var} declarations, {@code function} declarations,
+ * assignments, increments and {@code for..in} loop variables count as writes,
+ * as do assignments and increments of their members ({@code state.token=x},
+ * {@code counts[k]++}) and method calls on them ({@code ids.push(x)}), other
+ * than on the standard objects such as {@code Math} or {@code JSON}.  Step
+ * {@code j} depends on an earlier step {@code i} if one writes a variable the
+ * other reads or writes.
+ * <p/>
+ * A step whose scripts call a function they do not define (other than the
+ * prelude and standard functions), or use {@code eval}, {@code with} or
+ * {@code this}, can not be analyzed: it depends on every earlier step, and
+ * every later step depends on it.
+ * <p/>
+ * The {@code request} and {@code response} injected by every step that sends
+ * a request are handled separately: a step that refers to them without
+ * sending its own request (or before sending it) depends only on the nearest
+ * earlier step that sends one, its {@link #getSource(int) source}, whose
+ * {@code request} and {@code response} are restored for it.
+ */
+public class StepGraph {
+    private static final Pattern STRING     = Pattern.compile("\"(?:[^\"\\\\]|\\\\.)*\"|'(?:[^'\\\\]|\\\\.)*'|//[^\\n]*|/\\*.*?\\*/", Pattern.DOTALL);
+    private static final Pattern IDENTIFIER = Pattern.compile("(?<![\\w$.])[A-Za-z_$][\\w$]*");
+    private static final Pattern NAME       = Pattern.compile("[A-Za-z_$][\\w$]*");
+    private static final Pattern DECLARE    = Pattern.compile("\\b(?:var|let|const|function)\\s+([A-Za-z_$][\\w$]*)");
+    private static final Pattern ASSIGN     = Pattern.compile("(?<![\\w$.])([A-Za-z_$][\\w$]*)\\s*(?:<<|>>>?|[-+*/%&|^])?=(?!=)");
+    private static final Pattern INCREMENT  = Pattern.compile("(?<![\\w$.])([A-Za-z_$][\\w$]*)\\s*(?:\\+\\+|--)|(?:\\+\\+|--)\\s*([A-Za-z_$][\\w$]*)");
+    private static final Pattern FOR_IN     = Pattern.compile("\\bfor\\s*\\(\\s*([A-Za-z_$][\\w$]*)\\s+(?:in|of)\\b");
+    private static final Pattern UPDATE     = Pattern.compile("\\s*(?:(?:<<|>>>?|\\*\\*|[-+*/%&|^])?=(?![=>])|\\+\\+|--)");
+    private static final Pattern PREFIX     = Pattern.compile("(?:\\+\\+|--)\\s*$");
+
+    /**
+     * Keywords that may precede a parenthesis, and the prelude and standard
+     * functions and objects, which do not change the variables of a step.
+     */
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+        "if", "for", "while", "switch", "catch", "function", "return", "typeof", "void", "delete",
+        "in", "of", "instanceof", "do", "else", "var", "let", "const", "new", "throw", "case"));
+    private static final Set<String> STANDARD = new HashSet<>(Arrays.asList(
+        "expect", "println", "print", "debug", "yaml", "type", "length", "range", "matches", "isodate",
+        "parseInt", "parseFloat", "isNaN", "isFinite", "encodeURIComponent", "decodeURIComponent",
+        "encodeURI", "decodeURI", "escape", "unescape", "String", "Number", "Boolean", "Array",
+        "Object", "Date", "RegExp", "Error", "Math", "JSON", "Java"));
+    private static final Set<String> OPAQUE   = new HashSet<>(Arrays.asList("eval", "with", "this"));
+
+    private static final String REQUEST  = "request";
+    private static final String RESPONSE = "response";
+    private static final String ACTUAL   = "actual";
+
+    private final int[][] predecessors;
+    private final int[]   sources;
+
+    /**
+     * The variables read and written by one step.
+     */
+    private static class Access {
+        private final Set<String> reads    = new HashSet<>();
+        private final Set<String> writes   = new HashSet<>();
+        private final Set<String> declared = new HashSet<>();
+        private final Set<String> calls    = new HashSet<>();
+        private boolean           injected = false;
+        private boolean           opaque   = false;
+        private void scanScript(String script) {
+            if (script==null) {
+                return;
+            }
+            String code = STRING.matcher(script).replaceAll(" ");
+            Matcher m = IDENTIFIER.matcher(code);
+            while (m.find()) {
+                String name = m.group();
+                reads.add(name);
+                opaque |= OPAQUE.contains(name);
+                int end = members(code, m.end());
+                if (end<0) {
+                    opaque = true; // unbalanced brackets
+                } else if (end>m.end()) {
+                    // a member of name is updated, or a method called on it
+                    if (PREFIX.matcher(code.substring(0, m.start())).find() ||
+                        UPDATE.matcher(code).region(end, code.length()).lookingAt() ||
+                        next(code, end)=='(' && !STANDARD.contains(name)) {
+                        writes.add(name);
+                    }
+                } else if (next(code, end)=='(' && !KEYWORDS.contains(name)) {
+                    calls.add(name);
+                }
+            }
+            for (Pattern p : new Pattern[] {DECLARE, ASSIGN, INCREMENT, FOR_IN}) {
+                m = p.matcher(code);
+                while (m.find()) {
+                    writes.add(m.group(1)!=null ? m.group(1) : m.group(2));
+                }
+            }
+            m = DECLARE.matcher(code);
+            while (m.find()) {
+                declared.add(m.group(1));
+            }
+        }
+        /**
+         * Marks the step opaque if it calls a function it does not define.
+         */
+        private void classify() {
+            calls.removeAll(STANDARD);
+            calls.removeAll(declared);
+            opaque |= !calls.isEmpty();
+        }
+        private void scanTemplate(JsonNode template) {
+            List<String> scripts = new ArrayList<>();
+            collect(template, scripts);
+            scripts.forEach(this::scanScript);
+        }
+        /**
+         * Moves any reference to the injected {@code request} and
+         * {@code response} to the {@code injected} flag, and drops
+         * {@code actual}, which is local to each comparison.
+         */
+        private void separate() {
+            injected |= reads.remove(REQUEST) | reads.remove(RESPONSE);
+            writes.remove(REQUEST);
+            writes.remove(RESPONSE);
+            reads.remove(ACTUAL);
+            writes.remove(ACTUAL);
+        }
+    }
+
+    /**
+     * Skips the member accesses ({@code .name} and {@code [index]}) following
+     * an identifier.
+     * @return the index after them, or {@code -1} if a bracket is not closed
+     */
+    private static int members(String code, int i) {
+        int end = i;
+        while (true) {
+            int j = skip(code, end);
+            if (j<code.length() && code.charAt(j)=='.') {
+                Matcher m = NAME.matcher(code).region(skip(code, j+1), code.length());
+                if (!m.lookingAt()) {
+                    return end;
+                }
+                end = m.end();
+            } else if (j<code.length() && code.charAt(j)=='[') {
+                int depth = 0;
+                do {
+                    if (j>=code.length()) {
+                        return -1;
+                    }
+                    char c = code.charAt(j++);
+                    depth += c=='[' ? 1 : c==']' ? -1 : 0;
+                } while (depth>0);
+                end = j;
+            } else {
+                return end;
+            }
+        }
+    }
+
+    private static int skip(String code, int i) {
+        while (i<code.length() && Character.isWhitespace(code.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static char next(String code, int i) {
+        i = skip(code, i);
+        return i<code.length() ? code.charAt(i) : 0;
+    }
+
+    private static void collect(JsonNode node, List<String> scripts) {
+        if (node==null) {
+            return;
+        }
+        String script = JsonComparator.script(node);
+        if (script!=null) {
+            scripts.add(script);
+        } else if (node.isContainerNode()) {
+            node.forEach((child)->collect(child, scripts));
+        }
+    }
+
+    /*------------------------------------------------------------------------*
+     * Analysis.                                                              *
+     *------------------------------------------------------------------------*/
+    /**
+     * Analyzes the dependencies between {@code steps}.
+     * @param steps the steps of the sequence
+     * @return the dependency graph
+     */
+    public static StepGraph analyze(TestStep[] steps) {
+        return new StepGraph(steps);
+    }
+
+    private StepGraph(TestStep[] steps) {
+        int n = steps.length;
+        Access[] access = new Access[n];
+        sources = new int[n];
+        int last = -1;
+        for (int j=0; j<n; j++) {
+            TestStep step = steps[j];
+            Access a = new Access();
+            // references before the request is sent are to an earlier response
+            a.scanScript(step.getBefore());
+            a.scanTemplate(step.getRequest());
+            a.separate();
+            a.scanTemplate(step.getResponse());
+            a.scanScript(step.getAfter());
+            if (step.getRequest()!=null) {
+                // ...after that, to this step's own
+                a.reads.remove(REQUEST);
+                a.reads.remove(RESPONSE);
+            }
+            a.separate();
+            a.classify();
+            access[j]  = a;
+            sources[j] = a.injected ? last : -1;
+            if (step.getRequest()!=null) {
+                last = j;
+            }
+        }
+        predecessors = new int[n][];
+        for (int j=0; j<n; j++) {
+            List<Integer> p = new ArrayList<>();
+            for (int i=0; i<j; i++) {
+                if (access[i].opaque || access[j].opaque || conflict(access[i], access[j]) || sources[j]==i) {
+                    p.add(i);
+                }
+            }
+            predecessors[j] = p.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    private static boolean conflict(Access a, Access b) {
+        for (String w : a.writes) {
+            if (b.reads.contains(w) || b.writes.contains(w)) {
+                return true;
+            }
+        }
+        for (String w : b.writes) {
+            if (a.reads.contains(w)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*------------------------------------------------------------------------*
+     * Getters.                                                               *
+     *------------------------------------------------------------------------*/
+    /**
+     * @param j the step index
+     * @return the indexes of the earlier steps step {@code j} depends on
+     */
+    public int[] getPredecessors(int j) {
+        return predecessors[j];
+    }
+    /**
+     * @param j the step index
+     * @return the index of the nearest earlier step that sends a request,
+     * whose {@code request} and {@code response} step {@code j} refers to,
+     * or {@code -1} if there is none (or step {@code j} does not refer to them)
+     */
+    public int getSource(int j) {
+        return sources[j];
+    }
+    /**
+     * @return the number of steps
+     */
+    public int size() {
+        return predecessors.length;
+    }
+}
@@ -0,0 +1,228 @@
+package com.cleo.labs.resttest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An embedded, multi-threaded HTTP server standing in for the system under
+ * test, so that sequences can run locally at full speed (see
+ * {@link ReplayServer}).  Subclasses decide how to {@link #respond(String, String, byte[])
+ * respond} to each request.
+ * <p/>
+ * Each response may be delayed by a fixed {@code latency} plus a random
+ * {@code jitter} of up to the given number of milliseconds, to simulate a
+ * remote server.  Requests are handled by a pool of {@code threads}, which
+ * should be large enough for the delayed requests in flight.
+ * <p/>
+ * Point the tests at the server with {@code Request.setBaseURI(server.getURI())}.
+ */
+public abstract class StubServer implements Closeable {
+    /**
+     * Headers describing the framing of a recorded message, which the
+     * server sets itself.
+     */
+    private static final Set<String> FRAMING = ImmutableSet.of(
+        "content-length", "transfer-encoding", "content-encoding", "connection");
+
+    private int             port    = 0;
+    private int             threads = 50;
+    private long            latency = 0;
+    private long            jitter  = 0;
+    private HttpServer      server  = null;
+    private ExecutorService pool    = null;
+
+    /*------------------------------------------------------------------------*
+     * Serving.                                                               *
+     *------------------------------------------------------------------------*/
+    /**
+     * Returns the response to a request.
+     * @param method the request method
+     * @param uri the request path and query
+     * @param body the request body
+     * @return the response
+     * @throws IOException if the response can not be produced
+     */
+    protected abstract Response respond(String method, String uri, byte[] body) throws IOException;
+
+    /**
+     * Starts the server on {@code port} (or on any free port if {@code 0}).
+     * @return this
+     * @throws IOException if the server can not be started
+     */
+    public StubServer start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        pool   = Executors.newFixedThreadPool(threads);
+        server.setExecutor(pool);
+        server.createContext("/", this::handle);
+        server.start();
+        return this;
+    }
+
+    /**
+     * Stops the server.
+     */
+    @Override
+    public void close() {
+        if (server!=null) {
+            server.stop(0);
+            pool.shutdownNow();
+            server = null;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = ByteStreams.toByteArray(in);
+            }
+            Response response;
+            try {
+                response = respond(exchange.getRequestMethod(), exchange.getRequestURI().toString(), body);
+            } catch (Exception e) {
+                response = new Response().setStatus(500)
+                                         .setType("text/plain")
+                                         .setBody(JsonComparator.mapper.convertValue(e.toString(), JsonNode.class));
+            }
+            delay();
+            byte[] content = content(response);
+            if (response.getHeaders()!=null) {
+                for (Map.Entry<String,String> header : response.getHeaders().entrySet()) {
+                    if (!FRAMING.contains(header.getKey().toLowerCase())) {
+                        exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+                    }
+                }
+            }
+            if (response.getType()!=null && !response.getType().isEmpty()) {
+                exchange.getResponseHeaders().set("Content-Type", response.getType());
+            }
+            if (response.getCookies()!=null) {
+                response.getCookies().forEach((name,value) ->
+                    exchange.getResponseHeaders().add("Set-Cookie", name+"="+value));
+            }
+            boolean empty = content.length==0 || exchange.getRequestMethod().equals("HEAD");
+            exchange.sendResponseHeaders(response.getStatus(), empty ? -1 : content.length);
+            if (!empty) {
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(content);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void delay() {
+        long delay = latency+(jitter>0 ? ThreadLocalRandom.current().nextLong(jitter+1) : 0);
+        if (delay>0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the raw content of a response: its unparsed content if set,
+     * otherwise its {@code body}, as is for text and binary nodes, or as JSON.
+     */
+    private static byte[] content(Response response) throws IOException {
+        if (response.getContent()!=null) {
+            try (InputStream in = response.openBody()) {
+                return ByteStreams.toByteArray(in);
+            }
+        }
+        JsonNode body = response.getBody();
+        if (body==null || body.isMissingNode()) {
+            return new byte[0];
+        } else if (body.isBinary()) {
+            return body.binaryValue();
+        } else if (body.isTextual()) {
+            return body.asText().getBytes(Charsets.UTF_8);
+        }
+        return JsonComparator.mapper.writeValueAsBytes(body);
+    }
+
+    /*------------------------------------------------------------------------*
+     * Generated setter/getters (edited for fluency)                          *
+     *------------------------------------------------------------------------*/
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return server!=null ? server.getAddress().getPort() : port;
+    }
+    /**
+     * @param port the port to set, or {@code 0} for any free port
+     * @return this
+     */
+    public StubServer setPort(int port) {
+        this.port = port;
+        return this;
+    }
+    /**
+     * @return the base URI of the server, e.g. {@code http://localhost:8080}
+     */
+    public String getURI() {
+        return "http://localhost:"+getPort();
+    }
+    /**
+     * @return the number of request threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+    /**
+     * @param threads the number of request threads to set
+     * @return this
+     */
+    public StubServer setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+    /**
+     * @return the fixed latency in milliseconds
+     */
+    public long getLatency() {
+        return latency;
+    }
+    /**
+     * @param latency the fixed latency in milliseconds to set
+     * @return this
+     */
+    public StubServer setLatency(long latency) {
+        this.latency = latency;
+        return this;
+    }
+    /**
+     * @return the maximum random additional latency in milliseconds
+     */
+    public long getJitter() {
+        return jitter;
+    }
+    /**
+     * @param jitter the maximum random additional latency in milliseconds to set
+     * @return this
+     */
+    public StubServer setJitter(long jitter) {
+        this.jitter = jitter;
+        return this;
+    }
+}
@@ -0,0 +1,115 @@
+package com.cleo.labs.resttest;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Runs a selection of {@link TestSequence}s concurrently.  Each sequence
+ * is run on one of {@code parallelism} worker threads with its own
+ * {@link JsonComparator} (and so its own script engine), and the results
+ * are collected into a map keyed by sequence id, in selection order.
+ * <p/>
+ * Sequences are run without parameters, unless they are supplied with
+ * {@link #setParameters(String, JsonNode...) setParameters}.
+ */
+public class TestRunner {
+    public static final int DEFAULT_PARALLELISM = 8;
+
+    private int                   parallelism = DEFAULT_PARALLELISM;
+    private Map<String,JsonNode[]> parameters = new LinkedHashMap<>();
+
+    /**
+     * Runs each sequence in {@code sequences} concurrently.
+     * @param sequences the sequences to run, by id
+     * @return the results, by id
+     */
+    public Map<String,TestSequence.Result> run(Map<String,TestSequence> sequences) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, sequences.size())));
+        try {
+            Map<String,CompletableFuture<TestSequence.Result>> futures = new LinkedHashMap<>();
+            sequences.forEach((id,ts) ->
+                futures.put(id, CompletableFuture.supplyAsync(() -> run(id, ts), executor)));
+            Map<String,TestSequence.Result> results = new LinkedHashMap<>();
+            futures.forEach((id,future) -> results.put(id, future.join()));
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Runs the registered sequences identified by {@code ids} concurrently.
+     * @param ids the sequence ids
+     * @return the results, by id
+     * @throws IOException if an id is not registered
+     */
+    public Map<String,TestSequence.Result> run(String...ids) throws IOException {
+        Map<String,TestSequence> sequences = new LinkedHashMap<>();
+        for (String id : ids) {
+            sequences.put(id, TestSequence.get(id));
+        }
+        return run(sequences);
+    }
+
+    /**
+     * Runs every registered sequence concurrently.
+     * @return the results, by id
+     */
+    public Map<String,TestSequence.Result> runAll() {
+        Map<String,TestSequence> sequences = new LinkedHashMap<>();
+        TestSequence.forEach(sequences::put);
+        return run(sequences);
+    }
+
+    private TestSequence.Result run(String id, TestSequence ts) {
+        try (JsonComparator comparator = new JsonComparator()) {
+            return ts.run(comparator, parameters.get(id));
+        } catch (Throwable t) {
+            // run() handles step Exceptions, but not Errors (e.g. assertion failures)
+            TestSequence.Result result = new TestSequence.Result();
+            result.ok = false;
+            result.error(t.toString());
+            return result;
+        }
+    }
+
+    /*------------------------------------------------------------------------*
+     * Generated setter/getters (edited for fluency)                          *
+     *------------------------------------------------------------------------*/
+    /**
+     * @return the parallelism
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+    /**
+     * @param parallelism the maximum number of sequences to run at once
+     * @return this
+     */
+    public TestRunner setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+    /**
+     * @param id the sequence id
+     * @return the parameters to use for sequence {@code id}, or {@code null}
+     */
+    public JsonNode[] getParameters(String id) {
+        return parameters.get(id);
+    }
+    /**
+     * @param id the sequence id
+     * @param parameters the parameters to use for sequence {@code id}
+     * @return this
+     */
+    public TestRunner setParameters(String id, JsonNode...parameters) {
+        this.parameters.put(id, parameters);
+        return this;
+    }
+}
@@ -4,28 +4,42 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.stream.IntStream;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
-import com.fasterxml.jackson.dataformat.yaml.YAMLParser;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 @JsonInclude(Include.NON_NULL)
 public class TestSequence {
+    /**
+     * The executor for the steps of a {@code parallel} sequence run with
+     * {@link #run(JsonComparator, JsonNode...) run}: the steps may block on
+     * their requests, so the pool grows as needed rather than borrowing the
+     * common {@code ForkJoinPool}.
+     */
+    private static final Executor parallel_executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                                                                                        .setDaemon(true)
+                                                                                        .setNameFormat("resttest-step-%d")
+                                                                                        .build());
+
     private String     description = null;
     private String[]   parameters  = null;
     private TestStep[] steps       = null;
+    private Boolean    parallel    = null;
+    @JsonIgnore
+    private StepGraph  graph       = null;
 
     /**
      * Encapsulates the result of running a {@link TestSequence}.  If
@@ -33,13 +47,17 @@ public class TestSequence {
      * in {@code failed} (indicating the failure step number, starting
      * from 0), {@code failure} (indicating any {@link Exception} that
      * may have occurred, or {@code null} if not), and {@code errors}
-     * containing a list of error messages.
+     * containing a list of error messages.  The results of the steps
+     * that were run are collected in {@code steps}, and their phase
+     * timings are summed in {@code timing}.
      */
     public static /*case*/ class Result {
-        public boolean      ok      = true;
-        public int          failed  = -1;
-        public Exception    failure = null;
-        public List<String> errors  = null;
+        public boolean               ok      = true;
+        public int                   failed  = -1;
+        public Exception             failure = null;
+        public List<String>          errors  = null;
+        public List<TestStep.Result> steps   = new ArrayList<>();
+        public Timing                timing  = new Timing();
         /**
          * @param error the error to add
          * @return this
@@ -73,6 +91,81 @@ public class TestSequence {
      * @return the result
      */
     public Result run(JsonComparator comparator, JsonNode...parameters) {
+        Result result = bind(comparator, parameters);
+        if (result.ok && parallel!=null && parallel) {
+            return runParallel(comparator, parallel_executor, result);
+        }
+        for (int i=0; i<steps.length && result.ok; i++) {
+            long start = System.nanoTime();
+            try {
+                TestStep.Result step_result = steps[i].run(comparator);
+                step_result.elapsed = System.nanoTime()-start;
+                record(result, i, step_result);
+            } catch (Exception e) {
+                fail(result, i, e, System.nanoTime()-start);
+            }
+        }
+        return result;
+    }
+    public Result run(JsonNode...parameters) {
+        try (JsonComparator comparator = new JsonComparator()) {
+            return run(comparator, parameters);
+        }
+    }
+    /**
+     * Runs a test sequence asynchronously (see
+     * {@link TestStep#runAsync(JsonComparator, Executor) TestStep.runAsync}).
+     * The steps still run in order, each one starting when the previous one
+     * completes, and share the one {@code comparator}, but with a
+     * non-blocking transport no thread is blocked while a request is in
+     * flight, so a few {@code executor} threads can drive many concurrent
+     * sequences.  A blocking transport makes its round trips on the
+     * {@code executor}.
+     * @param comparator the {@link JsonComparator}, connecting test contexts
+     * @param executor the executor for the requests and the script and comparison stages
+     * @return the future result
+     */
+    public CompletableFuture<Result> runAsync(JsonComparator comparator, Executor executor, JsonNode...parameters) {
+        CompletableFuture<Result> future = CompletableFuture.supplyAsync(() -> bind(comparator, parameters), executor);
+        for (int i=0; i<steps.length; i++) {
+            int step = i;
+            future = future.thenComposeAsync((result) -> {
+                if (!result.ok) {
+                    return CompletableFuture.completedFuture(result);
+                }
+                long start = System.nanoTime();
+                CompletableFuture<TestStep.Result> step_future;
+                try {
+                    step_future = steps[step].runAsync(comparator, executor);
+                } catch (Exception e) {
+                    return CompletableFuture.completedFuture(fail(result, step, e, System.nanoTime()-start));
+                }
+                return step_future.handle((step_result, t) -> {
+                    if (t==null) {
+                        step_result.elapsed = System.nanoTime()-start;
+                        return record(result, step, step_result);
+                    }
+                    return fail(result, step, unwrap(t), System.nanoTime()-start);
+                });
+            }, executor);
+        }
+        return future;
+    }
+    /**
+     * Runs a test sequence asynchronously with its own {@link JsonComparator},
+     * which is closed when the sequence completes.
+     * @param executor the executor for the requests and the script and comparison stages
+     * @return the future result
+     */
+    public CompletableFuture<Result> runAsync(Executor executor, JsonNode...parameters) {
+        JsonComparator comparator = new JsonComparator();
+        return runAsync(comparator, executor, parameters).whenComplete((result, t) -> comparator.close());
+    }
+    /**
+     * Checks and binds the {@code parameters} in the {@code comparator}.
+     * @return a new result, failed if the parameters do not match
+     */
+    private Result bind(JsonComparator comparator, JsonNode...parameters) {
         Result result = new Result();
         int expected_parms = this.parameters==null ? 0 : this.parameters.length;
         int actual_parms   = parameters==null ? 0 : parameters.length;
@@ -84,31 +177,138 @@ public class TestSequence {
             IntStream.range(0, expected_parms).forEach((i) -> 
                 comparator.putJson(this.parameters[i], parameters[i]));
         }
-        for (int i=0; i<steps.length && result.ok; i++) {
-            try {
-                TestStep.Result step_result = steps[i].run(comparator);
-                if (!step_result.ok) {
-                    result.failed = i;
-                    result.ok     = false;
-                    result.errors = step_result.errors;
+        return result;
+    }
+    /**
+     * Runs the steps of the sequence concurrently, as far as the dependencies
+     * found by {@link StepGraph} allow: each step starts once the steps it
+     * depends on have completed, and the script stages of concurrent steps
+     * take turns on the {@code comparator}.  As for a sequential run, a step
+     * is not started once an earlier step has failed, and the result reports
+     * the steps up to the first failure.
+     */
+    private Result runParallel(JsonComparator comparator, Executor executor, Result result) {
+        StepGraph              graph    = getGraph();
+        int                    n        = steps.length;
+        TestStep.Result[]      results  = new TestStep.Result[n];
+        Exception[]            failures = new Exception[n];
+        long[]                 elapsed  = new long[n];
+        AtomicInteger          first    = new AtomicInteger(Integer.MAX_VALUE);
+        CompletableFuture<?>[] futures  = new CompletableFuture<?>[n];
+        for (int j=0; j<n; j++) {
+            int step = j;
+            CompletableFuture<?>[] predecessors = IntStream.of(graph.getPredecessors(j))
+                                                           .mapToObj((i)->futures[i])
+                                                           .toArray(CompletableFuture<?>[]::new);
+            futures[j] = CompletableFuture.allOf(predecessors).thenComposeAsync((v) -> {
+                if (first.get()<step) {
+                    // an earlier step failed: this one would not have run
+                    return CompletableFuture.completedFuture(null);
                 }
-            } catch (Exception e) {
-                result.failed  = i;
-                result.ok      = false;
-                result.failure = e;
-                e.printStackTrace(new PrintWriter(System.err) {
-                    @Override public void println(String s) {
-                        result.error(s);
+                int source = graph.getSource(step);
+                long start = System.nanoTime();
+                CompletableFuture<TestStep.Result> step_future;
+                try {
+                    step_future = steps[step].runAsync(comparator, executor, source>=0 ? results[source] : null);
+                } catch (Exception e) {
+                    step_future = new CompletableFuture<>();
+                    step_future.completeExceptionally(e);
+                }
+                return step_future.handle((step_result, t) -> {
+                    elapsed[step] = System.nanoTime()-start;
+                    if (t!=null) {
+                        failures[step] = unwrap(t);
+                        first.accumulateAndGet(step, Math::min);
+                    } else {
+                        step_result.elapsed = elapsed[step];
+                        results[step] = step_result;
+                        if (!step_result.ok) {
+                            first.accumulateAndGet(step, Math::min);
+                        }
                     }
-                    @Override public void println(Object o) {
-                        result.error(o.toString());
-                    }});
+                    return null;
+                });
+            }, executor);
+        }
+        CompletableFuture.allOf(futures).join();
+        for (int i=0; i<n && result.ok; i++) {
+            if (failures[i]!=null) {
+                fail(result, i, failures[i], elapsed[i]);
+            } else if (results[i]!=null) {
+                record(result, i, results[i]);
+            } else {
+                break;
             }
         }
         return result;
     }
-    public Result run(JsonNode...parameters) {
-        return run(new JsonComparator(), parameters);
+    private static Exception unwrap(Throwable t) {
+        Throwable cause = t instanceof CompletionException && t.getCause()!=null ? t.getCause() : t;
+        return cause instanceof Exception ? (Exception)cause : new CompletionException(cause);
+    }
+    /**
+     * Records the result of step {@code i} in the sequence {@code result}.
+     * @return the sequence result
+     */
+    private static Result record(Result result, int i, TestStep.Result step_result) {
+        result.steps.add(step_result);
+        result.timing.add(step_result.timing);
+        if (!step_result.ok) {
+            result.failed = i;
+            result.ok     = false;
+            result.errors = step_result.errors;
+        }
+        return result;
+    }
+    /**
+     * Records the failure of step {@code i} with exception {@code e} in the
+     * sequence {@code result}.
+     * @return the sequence result
+     */
+    private static Result fail(Result result, int i, Exception e, long elapsed) {
+        TestStep.Result step_result = new TestStep.Result();
+        step_result.ok      = false;
+        step_result.elapsed = elapsed;
+        step_result.error(e.toString());
+        result.steps.add(step_result);
+        result.failed  = i;
+        result.ok      = false;
+        result.failure = e;
+        e.printStackTrace(new PrintWriter(System.err) {
+            @Override public void println(String s) {
+                result.error(s);
+            }
+            @Override public void println(Object o) {
+                result.error(o.toString());
+            }});
+        return result;
+    }
+    /**
+     * Compiles the templates of each step (see {@link TestStep#compile()}),
+     * and analyzes the dependencies between the steps of a {@code parallel}
+     * sequence.
+     * @return this
+     */
+    public TestSequence compile() {
+        if (steps!=null) {
+            for (TestStep step : steps) {
+                step.compile();
+            }
+            if (parallel!=null && parallel) {
+                graph = StepGraph.analyze(steps);
+            }
+        }
+        return this;
+    }
+    /**
+     * Returns the dependencies between the steps, analyzing them on first use.
+     * @return the step dependency graph
+     */
+    public StepGraph getGraph() {
+        if (graph==null) {
+            graph = StepGraph.analyze(steps);
+        }
+        return graph;
     }
     /*------------------------------------------------------------------------*
      * Generated setter/getters (edited for fluency)                          *
@@ -153,37 +353,55 @@ public class TestSequence {
      */
     public TestSequence setSteps(TestStep[] steps) {
         this.steps = steps;
+        this.graph = null;
+        return this;
+    }
+    /**
+     * @return the parallel
+     */
+    public Boolean getParallel() {
+        return parallel;
+    }
+    /**
+     * @param parallel {@code true} to run independent steps concurrently
+     * @return this
+     */
+    public TestSequence setParallel(Boolean parallel) {
+        this.parallel = parallel;
         return this;
     }
     /*------------------------------------------------------------------------*
      * Test Sequence Factory -- loading from YAML.                            *
      *------------------------------------------------------------------------*/
-    private static final Map<String,TestSequence> registry     = new HashMap<>();
-    private static final Set<URL>                 loaded       = new HashSet<>();
-    private static final YAMLFactory              yaml_factory = new YAMLFactory();
+    private static final Registry<TestSequence>   registry     = new Registry<>(TestSequence.class, (u,ts) -> ts.compile());
     private static final Loader                   loader       = new Loader();
     public static class Loader {
         public TestSequence get(String id) throws IOException {
             return TestSequence.get(id);
         }
     }
-    public static synchronized Loader load(URL u) throws IOException {
-        if (!loaded.contains(u)) {
-            System.out.println("loading "+u.toString());
-            YAMLParser parser = yaml_factory.createParser(u);
-            Map<String,TestSequence> tests = JsonComparator.mapper.readValue(parser, new TypeReference<Map<String,TestSequence>>() {});
-            tests.forEach((name,ts) -> registry.put(name, ts));
-            loaded.add(u);
-        }
+    public static Loader load(URL u) throws IOException {
+        registry.load(u);
         return loader;
     }
     public static Loader load(String resource) throws IOException {
         return load(Resources.getResource(resource+".yaml"));
     }
-    public static TestSequence get(String id) throws IOException {
-        if (!registry.containsKey(id)) {
-            throw new IOException("test id \""+id+"\" not found");
+    /**
+     * Loads several resources in parallel.
+     * @param resources the resource names (without the .yaml extension)
+     * @return the loader
+     * @throws IOException if any resource can not be loaded
+     */
+    public static Loader loadAll(String...resources) throws IOException {
+        List<URL> urls = new ArrayList<>();
+        for (String resource : resources) {
+            urls.add(Resources.getResource(resource+".yaml"));
         }
+        registry.loadAll(urls);
+        return loader;
+    }
+    public static TestSequence get(String id) throws IOException {
         return registry.get(id);
     }
     public static void forEach(BiConsumer<? super String,? super TestSequence> action) {
@@ -1,12 +1,19 @@
 package com.cleo.labs.resttest;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.github.fge.jsonschema.core.report.ProcessingReport;
 
 @JsonInclude(Include.NON_NULL)
 public class TestStep {
@@ -15,6 +22,13 @@ public class TestStep {
     private JsonNode request     = null;
     private JsonNode response    = null;
     private String   after       = null;
+    private Boolean  stream      = null;
+    @JsonIgnore
+    private JsonMatcher
+                     matcher     = null;
+    @JsonIgnore
+    private JsonTemplate
+                     template    = null;
 
     /**
      * Encapsulates the result of running a {@link TestStep}.  If
@@ -22,12 +36,20 @@ public class TestStep {
      * in {@code errors}, which will contain a list of error messages.
      * If the {@code before} expression evaluated to
      * {@link JsonComparator.Result#SUCCESS SUCCESS}, this is interpreted
-     * as a skip signal and {@code skip} will be {@code true}.
+     * as a skip signal and {@code skip} will be {@code true}.  The
+     * {@code elapsed} time of the step is recorded in nanoseconds, and
+     * broken down by phase in {@code timing}.  If the step sent a request,
+     * the {@code request} and {@code response} injected into the scripts
+     * are kept as well.
      */
     public static /*case*/ class Result {
-        public boolean      ok     = true;
-        public boolean      skip   = false;
-        public List<String> errors = null;
+        public boolean      ok       = true;
+        public boolean      skip     = false;
+        public List<String> errors   = null;
+        public long         elapsed  = 0;
+        public Timing       timing   = new Timing();
+        public JsonNode     request  = null;
+        public JsonNode     response = null;
         /**
          * @param error the error to add
          * @return this
@@ -54,9 +76,95 @@ public class TestStep {
     /*------------------------------------------------------------------------*
      * Evaluating the test case.                                              *
      *------------------------------------------------------------------------*/
-    Result run(JsonComparator comparator) {
+    /**
+     * Compiles the {@code request} template into a {@link JsonTemplate} and
+     * the {@code response} template into a {@link JsonMatcher}, which are
+     * then reused for every run of this step.  Steps loaded through
+     * {@link TestSequence#load(java.net.URL) TestSequence.load} are compiled
+     * when the sequence is first retrieved, otherwise the templates are
+     * compiled on first use.
+     * @return this
+     */
+    public TestStep compile() {
+        template = JsonTemplate.compile(request);
+        matcher  = JsonMatcher.compile(response);
+        return this;
+    }
+    Result run(JsonComparator comparator) throws IOException {
         Result result = new Result();
+        Request req = prepare(comparator, result);
         Response actual = null;
+        if (req!=null) {
+            long start = System.nanoTime();
+            actual = req.invoke();
+            result.timing.invoke = System.nanoTime()-start;
+        }
+        return complete(comparator, result, req, actual);
+    }
+    /**
+     * Runs the step asynchronously.  The {@code before} script and the
+     * {@code request} template are evaluated on the calling thread, then the
+     * request is sent with {@link Request#invokeAsync(Executor)} and the
+     * remaining stages (parsing, comparison and the {@code after} script) run
+     * on {@code executor} once the response arrives.  With a non-blocking
+     * transport no thread is held waiting for the round trip; a blocking
+     * transport makes it on an {@code executor} thread.
+     * <p/>
+     * The stages may run on different threads, and hold the lock on the
+     * {@code comparator} while they use it, so that several steps may run
+     * concurrently against the same {@code comparator}.  The future completes
+     * exceptionally if any stage throws.
+     * @param comparator the {@link JsonComparator}
+     * @param executor the executor for the request and the stages after it
+     * @return the future result
+     */
+    CompletableFuture<Result> runAsync(JsonComparator comparator, Executor executor) {
+        return runAsync(comparator, executor, null);
+    }
+    /**
+     * Runs the step asynchronously as for {@link #runAsync(JsonComparator, Executor)},
+     * but first restores the {@code request} and {@code response} of the
+     * {@code previous} step (if not {@code null}) at the start of each stage,
+     * in case a concurrent step has replaced them in the meantime.
+     */
+    CompletableFuture<Result> runAsync(JsonComparator comparator, Executor executor, Result previous) {
+        Result result = new Result();
+        Request req;
+        synchronized (comparator) {
+            restore(comparator, previous);
+            req = prepare(comparator, result);
+        }
+        if (req==null) {
+            return CompletableFuture.supplyAsync(() -> {
+                synchronized (comparator) {
+                    restore(comparator, previous);
+                    return complete(comparator, result, null, null);
+                }
+            }, executor);
+        }
+        long start = System.nanoTime();
+        return req.invokeAsync(executor).thenApplyAsync((actual) -> {
+            result.timing.invoke = System.nanoTime()-start;
+            synchronized (comparator) {
+                return complete(comparator, result, req, actual);
+            }
+        }, executor);
+    }
+    private static void restore(JsonComparator comparator, Result previous) {
+        if (previous!=null && previous.request!=null) {
+            comparator.putJson("request", previous.request);
+            comparator.putJson("response", previous.response);
+        }
+    }
+    /**
+     * The first stage of a step: runs the {@code before} script and
+     * evaluates the {@code request} template.
+     * @return the request to send, or {@code null} if there is none
+     * (or it is to be skipped, or the {@code before} script failed)
+     */
+    private Request prepare(JsonComparator comparator, Result result) {
+        Timing timing = result.timing;
+        long start = System.nanoTime();
         if (result.ok && before!=null) {
             Object script_result = comparator.evalScript(before);
             if (JsonComparator.Result.FAILURE.equals(script_result)) {
@@ -66,29 +174,88 @@ public class TestStep {
                 // this means skip the request/response/after scripts
                 result.skip = true;
             }
+            timing.before = System.nanoTime()-start;
         }
         if (result.ok && !result.skip && request!=null) {
-            Request req = JsonComparator.mapper.convertValue(comparator.evalNode(request), Request.class);
-            actual = new Response(req.invoke());
-            result.ok = actual!=null;
-            comparator.putJson("request", req.asJson());
-            comparator.putJson("response", actual.asJson());
+            start = System.nanoTime();
+            JsonTemplate t = template!=null ? template : compile().template;
+            Request req = JsonComparator.mapper.convertValue(t.instantiate(comparator), Request.class);
+            timing.request = System.nanoTime()-start;
+            return req;
+        }
+        return null;
+    }
+    /**
+     * The last stage of a step: parses the {@code actual} response (unless
+     * streaming), checks it against the {@code response} template, and runs
+     * the {@code after} script.  Whatever happens, the response content is
+     * then released, so a streamed body that was not read to the end (or
+     * not read at all, after an error) does not hold on to its connection.
+     */
+    private Result complete(JsonComparator comparator, Result result, Request req, Response actual) {
+        try {
+            return verify(comparator, result, req, actual);
+        } finally {
+            if (actual!=null) {
+                actual.close();
+            }
+        }
+    }
+    private Result verify(JsonComparator comparator, Result result, Request req, Response actual) {
+        Timing timing = result.timing;
+        long start;
+        if (actual!=null) {
+            if (!(stream!=null && stream)) {
+                start = System.nanoTime();
+                actual.parseBody();
+                timing.parse = System.nanoTime()-start;
+            }
+            actual.setTiming(timing);
+            result.request  = req.asJson();
+            result.response = actual.asJson();
+            comparator.putJson("request", result.request);
+            comparator.putJson("response", result.response);
         }
         if (result.ok && !result.skip && actual!=null && response!=null) {
             if (response.get("schema")!=null) {
+                start = System.nanoTime();
                 String schema = response.get("schema").asText();
-                actual.getResponse().then().body(JsonComparator.matchesSchema(schema));
+                // validation needs the whole tree, so a streamed body is parsed after all
+                ProcessingReport report;
+                try {
+                    report = JsonComparator.validate(schema, actual.parseBody().getBody());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (!report.isSuccess()) {
+                    throw new AssertionError("response body does not match schema "+schema+": "+report);
+                }
                 actual.setSchema(schema);
+                timing.schema = System.nanoTime()-start;
+            }
+            start = System.nanoTime();
+            JsonMatcher m = matcher!=null ? matcher : compile().matcher;
+            List<JsonComparator.Comparison> mismatches;
+            if (actual.getBody()==null && stream!=null && stream) {
+                try (JsonParser parser = JsonComparator.mapper.getFactory().createParser(actual.openBody())) {
+                    mismatches = m.match(comparator, actual.asJson(), "body", parser);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                mismatches = m.match(comparator, actual.asJson());
             }
-            List<JsonComparator.Comparison> mismatches = comparator.compareNodes(response, actual.asJson());
             result.ok = mismatches.isEmpty();
             mismatches.forEach((c)->result.error(c.toString()));
+            timing.compare = System.nanoTime()-start;
         }
         if (result.ok && !result.skip && after!=null) {
+            start = System.nanoTime();
             if (JsonComparator.Result.FAILURE.equals(comparator.evalScript(after))) {
                 result.ok = false;
                 result.error("after script failed: "+after);
             }
+            timing.after = System.nanoTime()-start;
         }
         return result;
     }
@@ -134,7 +301,8 @@ public class TestStep {
      * @return this
      */
     public TestStep setRequest(JsonNode request) {
-        this.request = request;
+        this.request  = request;
+        this.template = null;
         return this;
     }
     /**
@@ -149,6 +317,21 @@ public class TestStep {
      */
     public TestStep setResponse(JsonNode response) {
         this.response = response;
+        this.matcher  = null;
+        return this;
+    }
+    /**
+     * @return the stream
+     */
+    public Boolean getStream() {
+        return stream;
+    }
+    /**
+     * @param stream {@code true} to match the response body as a stream
+     * @return this
+     */
+    public TestStep setStream(Boolean stream) {
+        this.stream = stream;
         return this;
     }
     /**
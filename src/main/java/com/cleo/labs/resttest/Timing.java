@@ -0,0 +1,75 @@
+package com.cleo.labs.resttest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Records the time spent in each phase of a {@link TestStep}, in
+ * nanoseconds:
+ * <ul>
+ * <li>{@code before}: the {@code before} script</li>
+ * <li>{@code request}: evaluating the ${scripts} in the {@code request}</li>
+ * <li>{@code invoke}: the HTTP round trip</li>
+ * <li>{@code parse}: decoding the response body</li>
+ * <li>{@code schema}: json-schema validation</li>
+ * <li>{@code compare}: matching the {@code response} template</li>
+ * <li>{@code after}: the {@code after} script</li>
+ * </ul>
+ * The timings of several steps may be aggregated with {@link #add(Timing)}.
+ */
+public class Timing {
+    public long before  = 0;
+    public long request = 0;
+    public long invoke  = 0;
+    public long parse   = 0;
+    public long schema  = 0;
+    public long compare = 0;
+    public long after   = 0;
+
+    /**
+     * @return the sum of all phases, in nanoseconds
+     */
+    public long total() {
+        return before+request+invoke+parse+schema+compare+after;
+    }
+
+    /**
+     * Adds the phase timings of {@code other} to this one.
+     * @param other the timing to add
+     * @return this
+     */
+    public Timing add(Timing other) {
+        before  += other.before;
+        request += other.request;
+        invoke  += other.invoke;
+        parse   += other.parse;
+        schema  += other.schema;
+        compare += other.compare;
+        after   += other.after;
+        return this;
+    }
+
+    /**
+     * Returns the phase timings in milliseconds, as seen by scripts
+     * in {@code response.timing}.
+     * @return the timings as a {@link JsonNode}
+     */
+    public JsonNode asJson() {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        node.put("before",  before/1e6);
+        node.put("request", request/1e6);
+        node.put("invoke",  invoke/1e6);
+        node.put("parse",   parse/1e6);
+        node.put("schema",  schema/1e6);
+        node.put("compare", compare/1e6);
+        node.put("after",   after/1e6);
+        node.put("total",   total()/1e6);
+        return node;
+    }
+
+    @Override
+    public String toString() {
+        return asJson().toString();
+    }
+}
@@ -0,0 +1,90 @@
+package com.cleo.labs.resttest;
+
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonPointer;
+
+/**
+ * The path from the root of a document to the node being compared, kept as
+ * a reusable stack of field names and array indexes.  Comparisons push and
+ * pop segments as they descend, and only convert the path to a
+ * {@link JsonPointer} when a mismatch is reported, so a matching document
+ * is traversed without building any paths.
+ */
+public class Trail {
+    private String[] names   = new String[16];
+    private int[]    indexes = new int[16];
+    private int      depth   = 0;
+
+    /**
+     * Appends a field name.
+     * @param name the field name
+     * @return this
+     */
+    public Trail push(String name) {
+        grow();
+        names[depth++] = name;
+        return this;
+    }
+
+    /**
+     * Appends an array index.
+     * @param index the array index
+     * @return this
+     */
+    public Trail push(int index) {
+        grow();
+        names[depth]     = null;
+        indexes[depth++] = index;
+        return this;
+    }
+
+    /**
+     * Removes the last segment.
+     */
+    public void pop() {
+        names[--depth] = null;
+    }
+
+    private void grow() {
+        if (depth==names.length) {
+            names   = Arrays.copyOf(names, depth*2);
+            indexes = Arrays.copyOf(indexes, depth*2);
+        }
+    }
+
+    /**
+     * @return an independent copy of this trail
+     */
+    public Trail copy() {
+        Trail copy = new Trail();
+        copy.names   = Arrays.copyOf(names, names.length);
+        copy.indexes = Arrays.copyOf(indexes, indexes.length);
+        copy.depth   = depth;
+        return copy;
+    }
+
+    /**
+     * @return the path as a {@link JsonPointer}, {@code "/"} for the root
+     */
+    public JsonPointer toPointer() {
+        if (depth==0) {
+            return JsonPointer.valueOf("/");
+        }
+        StringBuilder path = new StringBuilder();
+        for (int i=0; i<depth; i++) {
+            path.append('/');
+            if (names[i]!=null) {
+                path.append(names[i]);
+            } else {
+                path.append(indexes[i]);
+            }
+        }
+        return JsonPointer.valueOf(path.toString());
+    }
+
+    @Override
+    public String toString() {
+        return toPointer().toString();
+    }
+}
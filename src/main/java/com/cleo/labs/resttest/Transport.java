@@ -0,0 +1,70 @@
+package com.cleo.labs.resttest;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Sends a {@link Request} over HTTP.  The {@link Response} returned should
+ * carry the status, type, headers and cookies, with the body left as unparsed
+ * content (see {@link Response#setContent(java.io.InputStream) setContent}),
+ * so the caller can choose to {@link Response#parseBody() parse} it or
+ * {@link Response#openBody() stream} it.
+ * <p/>
+ * The transport used by {@link Request#invoke()} is set with
+ * {@link Request#setTransport(Transport)}, and defaults to
+ * {@link RestAssuredTransport}.  Implementations must be thread safe.
+ */
+public interface Transport {
+    /**
+     * The executor for the blocking round trips of {@link #invokeAsync(Request)}:
+     * a pool of daemon threads that grows as needed, kept apart from the
+     * common {@code ForkJoinPool} so that requests in flight never starve it.
+     */
+    Executor BLOCKING_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                                                                   .setDaemon(true)
+                                                                   .setNameFormat("resttest-transport-%d")
+                                                                   .build());
+
+    /**
+     * Sends {@code request} and returns the response.
+     * @param request the request
+     * @return the response, with unparsed content
+     * @throws IOException if the request fails
+     */
+    Response invoke(Request request) throws IOException;
+
+    /**
+     * Sends {@code request} without blocking the caller, as for
+     * {@link #invokeAsync(Request, Executor)} on the {@link #BLOCKING_EXECUTOR}.
+     * @param request the request
+     * @return the future response, with unparsed content
+     */
+    default CompletableFuture<Response> invokeAsync(Request request) {
+        return invokeAsync(request, BLOCKING_EXECUTOR);
+    }
+
+    /**
+     * Sends {@code request} without blocking the caller.  The default
+     * implementation simply runs {@link #invoke(Request)} on {@code executor},
+     * which still ties up one of its threads for the round trip:
+     * non-blocking transports such as {@link HttpAsyncClientTransport}
+     * override it, and do not use the {@code executor}.
+     * @param request the request
+     * @param executor the executor for a blocking round trip
+     * @return the future response, with unparsed content
+     */
+    default CompletableFuture<Response> invokeAsync(Request request, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return invoke(request);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+}
@@ -0,0 +1,250 @@
+package com.cleo.labs.resttest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import jdk.nashorn.api.scripting.AbstractJSObject;
+import jdk.nashorn.api.scripting.JSObject;
+
+/**
+ * Exposes a {@link JsonNode} container (an object or array) to the
+ * JavaScript engine as a lazy, read-only JavaScript object.  Members are
+ * wrapped only as they are read, so binding a {@code JsonView} costs the
+ * same regardless of the size of the tree.
+ * <p/>
+ * Value nodes are converted to the corresponding JavaScript primitives
+ * (string, number, boolean or {@code null}), arrays report {@code true}
+ * to {@code Array.isArray} and support {@code length} and indexing, and
+ * objects support property access, {@code in}, {@code for..in} and
+ * {@code Object.keys}.  Absent members and elements read as
+ * {@code undefined}.  Other members, such as {@code map}, {@code forEach},
+ * {@code filter}, {@code indexOf} or {@code hasOwnProperty}, are looked up
+ * on {@code Array.prototype} or {@code Object.prototype} and bound to a
+ * JavaScript copy of the node, made when such a method is first read, so
+ * they behave as on a plain JavaScript value.  Any attempt to modify the
+ * view throws an {@link UnsupportedOperationException}: scripts that
+ * update their JSON need the {@link JsonComparator.Binding#SOURCE SOURCE}
+ * binding.
+ */
+public class JsonView extends AbstractJSObject {
+    /**
+     * What views need from the engine they are bound in: its
+     * {@code undefined} value, which the {@code JSObject} API has no public
+     * name for, and a script function {@code (view, name)} returning the
+     * prototype method {@code name} bound to a copy of {@code view}, or
+     * {@code undefined}.  Created by {@code NashornScripting}.
+     */
+    public static class Scope {
+        private final Object   undefined;
+        private final JSObject methods;
+        /**
+         * @param undefined the engine's {@code undefined} value
+         * @param methods the prototype method lookup, or {@code null} to
+         * expose no methods
+         */
+        public Scope(Object undefined, JSObject methods) {
+            this.undefined = undefined;
+            this.methods   = methods;
+        }
+    }
+
+    private static final Scope NONE = new Scope(null, null);
+
+    private final JsonNode node;
+    private final Scope    scope;
+
+    /**
+     * Creates a view of a container {@code node}.  Use {@link #wrap(JsonNode, Scope)}
+     * to convert arbitrary nodes.
+     * @param node the node to view
+     * @param scope the engine the view is bound in
+     */
+    public JsonView(JsonNode node, Scope scope) {
+        this.node  = node;
+        this.scope = scope;
+    }
+
+    /**
+     * Creates a view of a container {@code node} that exposes no methods,
+     * and reads absent members as {@code null}.
+     * @param node the node to view
+     */
+    public JsonView(JsonNode node) {
+        this(node, NONE);
+    }
+
+    /**
+     * @return the viewed node
+     */
+    public JsonNode getNode() {
+        return node;
+    }
+
+    /**
+     * Converts a {@link JsonNode} to the value a script should see: a
+     * JavaScript primitive for value nodes, or a {@code JsonView} for
+     * containers.
+     * @param node the node to convert
+     * @param scope the engine the value is bound in
+     * @return the script value
+     */
+    public static Object wrap(JsonNode node, Scope scope) {
+        if (node==null || node.isMissingNode()) {
+            return scope.undefined;
+        } else if (node.isNull()) {
+            return null;
+        } else if (node.isContainerNode()) {
+            return new JsonView(node, scope);
+        } else if (node.isTextual()) {
+            return node.textValue();
+        } else if (node.isBoolean()) {
+            return node.booleanValue();
+        } else if (node.isNumber()) {
+            if (node.isIntegralNumber() && node.canConvertToInt()) {
+                return node.intValue();
+            }
+            return node.doubleValue();
+        }
+        return node.asText();
+    }
+
+    /**
+     * Converts a {@link JsonNode} to the value a script should see, with
+     * views that expose no methods.
+     * @param node the node to convert
+     * @return the script value
+     */
+    public static Object wrap(JsonNode node) {
+        return wrap(node, NONE);
+    }
+
+    /**
+     * Returns the JSON text of a view, from which scripts can make a copy.
+     * @param view the view
+     * @return a JSON string
+     */
+    public static String json(JsonView view) {
+        return view.node.toString();
+    }
+
+    /**
+     * Converts a JavaScript value that may be a {@code JsonView} to YAML,
+     * as for {@link JsonComparator#yaml(String)}.
+     * @param view the view
+     * @return a YAML string
+     */
+    public static String yaml(JsonView view) {
+        return JsonComparator.yaml(view.node.toString());
+    }
+
+    /*------------------------------------------------------------------------*
+     * JSObject implementation.                                               *
+     *------------------------------------------------------------------------*/
+    @Override
+    public Object getMember(String name) {
+        if (node.isArray()) {
+            if (name.equals("length")) {
+                return node.size();
+            }
+        } else if (node.has(name)) {
+            return wrap(node.get(name), scope);
+        }
+        return method(name);
+    }
+
+    /**
+     * Returns the prototype method {@code name}, bound to a JavaScript copy
+     * of the node, or {@code undefined}.
+     */
+    private Object method(String name) {
+        Object method = scope.methods!=null ? scope.methods.call(null, this, name) : null;
+        return method!=null ? method : scope.undefined;
+    }
+
+    @Override
+    public boolean hasMember(String name) {
+        return node.isArray() ? name.equals("length") : node.has(name);
+    }
+
+    @Override
+    public Object getSlot(int index) {
+        return wrap(node.get(index), scope);
+    }
+
+    @Override
+    public boolean hasSlot(int index) {
+        return node.has(index);
+    }
+
+    @Override
+    public Set<String> keySet() {
+        Set<String> keys = new LinkedHashSet<>();
+        if (node.isArray()) {
+            IntStream.range(0, node.size()).forEach((i)->keys.add(String.valueOf(i)));
+        } else {
+            node.fieldNames().forEachRemaining(keys::add);
+        }
+        return keys;
+    }
+
+    @Override
+    public Collection<Object> values() {
+        List<Object> values = new ArrayList<>(node.size());
+        node.elements().forEachRemaining((e)->values.add(wrap(e, scope)));
+        return values;
+    }
+
+    @Override
+    public boolean isArray() {
+        return node.isArray();
+    }
+
+    @Override
+    public String getClassName() {
+        return node.isArray() ? "Array" : "Object";
+    }
+
+    @Override
+    public void setMember(String name, Object value) {
+        throw new UnsupportedOperationException("read-only JSON: cannot set "+name);
+    }
+
+    @Override
+    public void removeMember(String name) {
+        throw new UnsupportedOperationException("read-only JSON: cannot remove "+name);
+    }
+
+    @Override
+    public void setSlot(int index, Object value) {
+        throw new UnsupportedOperationException("read-only JSON: cannot set ["+index+"]");
+    }
+
+    @Override
+    public Object getDefaultValue(Class<?> hint) {
+        return toString();
+    }
+
+    /**
+     * Returns the string conversion JavaScript would produce for an
+     * equivalent object or array.
+     */
+    @Override
+    public String toString() {
+        if (node.isArray()) {
+            List<String> elements = new ArrayList<>(node.size());
+            node.elements().forEachRemaining((e)->{
+                Object o = wrap(e);
+                elements.add(o==null ? "" : o.toString());
+            });
+            return elements.stream().collect(Collectors.joining(","));
+        }
+        return "[object Object]";
+    }
+}
@@ -0,0 +1,228 @@
+package com.cleo.labs.resttest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import jdk.nashorn.api.scripting.AbstractJSObject;
+import jdk.nashorn.api.scripting.JSObject;
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+
+/**
+ * {@link Scripting} on the Nashorn engine bundled with Java 8.  JSON is bound
+ * as a {@link JsonView}, whose array and object methods are found on this
+ * engine's prototypes, and the prelude also loads {@code mozilla_compat.js}
+ * (for {@code importClass} and {@code importPackage}) and makes {@code yaml}
+ * aware of {@code JsonView}s.
+ * <p/>
+ * Each context has its own engine, and compiles each distinct script once,
+ * retaining the compiled scripts in a bounded cache keyed by the script text.
+ * Resetting removes (or sets to {@code undefined}) any global variables
+ * created since the prelude and restores any prelude variables that were
+ * reassigned, but does not undo changes made to the built-in objects.
+ */
+public class NashornScripting implements Scripting {
+    private static final ScriptEngineManager engine_factory = new ScriptEngineManager();
+
+    /**
+     * The Nashorn prelude: {@link JsonComparator#PRELUDE} with the additions
+     * described above.
+     */
+    static final String PRELUDE = "load('nashorn:mozilla_compat.js');"+
+                        JsonComparator.PRELUDE+
+                        "var JsonView=Java.type('"+JsonView.class.getName()+"');"+
+                        "function yaml(o) { return o instanceof JsonView ? JsonView.yaml(o) : com.cleo.labs.resttest.JsonComparator.yaml(JSON.stringify(o)); }";
+
+    private final ScriptEngine                 engine;
+    private final Cache<String,CompiledScript> scripts;
+    private final Map<String,Object>           prelude;
+    private final JSObject                     undefine;
+    private final JsonView.Scope               scope;
+
+    /**
+     * Creates a new engine and evaluates the prelude.
+     * @param scriptCacheSize the maximum number of compiled scripts retained
+     * @throws ScriptException if the prelude fails
+     */
+    public NashornScripting(int scriptCacheSize) throws ScriptException {
+        this.engine   = engine_factory.getEngineByName("JavaScript");
+        this.scripts  = CacheBuilder.newBuilder().maximumSize(scriptCacheSize).recordStats().build();
+        engine.eval(PRELUDE);
+        this.prelude  = new HashMap<>(globals());
+        this.undefine = (JSObject)engine.eval("(function(k) { delete this[k]; if (k in this) this[k]=undefined; })");
+        JSObject methods = (JSObject)engine.eval("(function(JsonView) { return function(view, name) {"+
+                                              " var p=Array.isArray(view) ? Array.prototype : Object.prototype;"+
+                                              " return typeof p[name]=='function' ? p[name].bind(JSON.parse(JsonView.json(view))) : undefined;"+
+                                              " }; })(Java.type('"+JsonView.class.getName()+"'))");
+        this.scope    = new JsonView.Scope(undefined(), methods);
+    }
+
+    /**
+     * Returns this engine's {@code undefined}.  Values returned to Java
+     * through the scripting API have {@code undefined} translated to
+     * {@code null}, but arguments passed to a {@code JSObject} function are
+     * not, so a script passes it to one.
+     */
+    private Object undefined() throws ScriptException {
+        Object[] undefined = new Object[1];
+        JSObject capture = new AbstractJSObject() {
+            @Override
+            public boolean isFunction() {
+                return true;
+            }
+            @Override
+            public Object call(Object thiz, Object...args) {
+                undefined[0] = args.length>0 ? args[0] : null;
+                return null;
+            }
+        };
+        ((JSObject)engine.eval("(function(f) { f(undefined); })")).call(null, capture);
+        return undefined[0];
+    }
+
+    private Bindings globals() {
+        return engine.getBindings(ScriptContext.ENGINE_SCOPE);
+    }
+
+    /**
+     * @return the engine
+     */
+    public ScriptEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Returns the compiled form of {@code script}, compiling it on first use.
+     * Scripts that fail to compile are not cached.
+     * @param script the script to compile
+     * @return the compiled script, bound to this engine
+     * @throws ScriptException if the script does not compile
+     */
+    public CompiledScript compile(String script) throws ScriptException {
+        try {
+            return scripts.get(script, () -> ((Compilable)engine).compile(script));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof ScriptException) {
+                throw (ScriptException)e.getCause();
+            }
+            throw new ScriptException(e);
+        }
+    }
+
+    /*------------------------------------------------------------------------*
+     * Scripting implementation.                                              *
+     *------------------------------------------------------------------------*/
+    @Override
+    public Object eval(String script) throws ScriptException {
+        return unwrap(engine instanceof Compilable ? compile(script).eval() : engine.eval(script));
+    }
+
+    @Override
+    public Object evalUncached(String script) throws ScriptException {
+        return unwrap(engine.eval(script));
+    }
+
+    @Override
+    public Object get(String var) {
+        return unwrap(globals().get(var));
+    }
+
+    @Override
+    public Object raw(String var) {
+        return globals().get(var);
+    }
+
+    @Override
+    public void put(String var, Object value) {
+        engine.put(var, value);
+    }
+
+    @Override
+    public void putJson(String var, JsonNode json) {
+        if (json==null || json.isMissingNode()) {
+            try {
+                eval("var "+var+"=undefined");
+            } catch (ScriptException e) {
+                JsonComparator.logger.debug(e);
+                e.printStackTrace();
+            }
+        } else {
+            engine.put(var, JsonView.wrap(json, scope));
+        }
+    }
+
+    @Override
+    public void reset() {
+        Bindings globals = globals();
+        for (String key : new HashSet<>(globals.keySet())) {
+            if (!prelude.containsKey(key)) {
+                undefine.call(null, key);
+            }
+        }
+        prelude.forEach((key,value) -> {
+            if (!Objects.equals(globals.get(key), value)) {
+                globals.put(key, value);
+            }
+        });
+    }
+
+    @Override
+    public CacheStats getScriptCacheStats() {
+        return scripts.stats();
+    }
+
+    @Override
+    public void close() {
+        // nothing to release: the engine is simply dropped
+    }
+
+    /**
+     * Converts a script value to a Java value: views back to their nodes,
+     * and script arrays and objects to {@link List}s and {@link Map}s.
+     */
+    private static Object unwrap(Object result) {
+        if (result instanceof JsonView) {
+            return ((JsonView)result).getNode();
+        } else if (ScriptObjectMirror.isUndefined(result)) {
+            return null;
+        } else if (result instanceof ScriptObjectMirror) {
+            ScriptObjectMirror mirror = (ScriptObjectMirror)result;
+            if (mirror.isArray()) {
+                List<Object> list = new ArrayList<>();
+                int length = ((Number)mirror.getMember("length")).intValue();
+                for (int i=0; i<length; i++) {
+                    list.add(unwrap(mirror.getSlot(i)));
+                }
+                return list;
+            }
+            Map<String,Object> map = new LinkedHashMap<>();
+            for (String key : mirror.keySet()) {
+                Object member = mirror.get(key);
+                if (!(member instanceof ScriptObjectMirror && ((ScriptObjectMirror)member).isFunction())) {
+                    map.put(key, unwrap(member));
+                }
+            }
+            return map;
+        }
+        return result;
+    }
+}
@@ -2,14 +2,26 @@ package com.cleo.labs.resttest;
 
 import static com.jayway.restassured.RestAssured.given;
 import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
 import static org.testng.AssertJUnit.fail;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.testng.annotations.Test;
 import org.testng.log4testng.Logger;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
@@ -53,6 +65,416 @@ public class Main {
             assertEquals(result, mismatches.isEmpty());
         });
     }
+    @Test
+    public void testJsonMatcher() throws Exception {
+        String yaml = Resources.toString(Resources.getResource("test-compare.yaml"), Charsets.UTF_8);
+        JsonNode json = new ObjectMapper().readTree(new YAMLFactory().createParser(yaml));
+        JsonComparator comparator = new JsonComparator();
+        json.fields().forEachRemaining((entry) -> {
+            String   name = entry.getKey();
+            JsonNode test = entry.getValue();
+            JsonMatcher matcher = JsonMatcher.compile(test.get("expected"));
+            List<JsonComparator.Comparison> mismatches = matcher.match(comparator, comparator.evalNode(test.get("actual")));
+            boolean result = test.get("result").asBoolean();
+            System.out.println("matcher results for test "+name+" expected result="+result);
+            mismatches.forEach((m)->System.out.println(m.toString()));
+            assertEquals(result, mismatches.isEmpty());
+        });
+    }
+    @Test
+    public void testStreamedMatch() throws Exception {
+        String yaml = Resources.toString(Resources.getResource("test-compare.yaml"), Charsets.UTF_8);
+        JsonNode json = new ObjectMapper().readTree(new YAMLFactory().createParser(yaml));
+        JsonComparator comparator = new JsonComparator();
+        json.fields().forEachRemaining((entry) -> {
+            String   name   = entry.getKey();
+            JsonNode test   = entry.getValue();
+            JsonNode actual = comparator.evalNode(test.get("actual"));
+            ObjectNode head     = JsonNodeFactory.instance.objectNode().put("status", 200);
+            ObjectNode expected = head.deepCopy();
+            expected.set("body", test.get("expected"));
+            JsonMatcher matcher   = JsonMatcher.compile(test.get("expected"));
+            JsonMatcher responses = JsonMatcher.compile(expected);
+            try {
+                List<String> nodes = paths(comparator.compareNodes(test.get("expected"), actual), "");
+                List<String> streamed = paths(matcher.match(comparator, parser(actual)), "");
+                List<String> headed = paths(responses.match(comparator, head, "body", parser(actual)), "/body");
+                System.out.println("streamed results for test "+name+": "+nodes);
+                assertEquals(name, nodes, streamed);
+                assertEquals(name, nodes, headed);
+                assertEquals(name, test.get("result").asBoolean(), streamed.isEmpty());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        JsonNode expected = new ObjectMapper(new YAMLFactory()).readTree("{a: 1, b: [1, 2], c: {d: 3}, e: '${type(\"string\")}'}");
+        JsonNode actual   = new ObjectMapper(new YAMLFactory()).readTree("{e: 5, c: {d: 4}, b: [2, 1], a: 2, f: 6}");
+        assertEquals(5, comparator.compareNodes(expected, actual).size());
+        assertEquals(5, JsonMatcher.compile(expected).match(comparator, parser(actual)).size());
+        comparator.setLimit(2);
+        assertEquals(2, comparator.compareNodes(expected, actual).size());
+        assertEquals(2, JsonMatcher.compile(expected).match(comparator, parser(actual)).size());
+        comparator.close();
+    }
+    private static JsonParser parser(JsonNode json) throws IOException {
+        return JsonComparator.mapper.getFactory().createParser(JsonComparator.mapper.writeValueAsBytes(json));
+    }
+    private static List<String> paths(List<JsonComparator.Comparison> report, String prefix) {
+        List<String> paths = new ArrayList<>();
+        report.forEach((c)->paths.add(c.getPath().toString().substring(prefix.length())));
+        Collections.sort(paths);
+        return paths;
+    }
+    @Test
+    public void testGraalScripting() throws Exception {
+        String yaml = Resources.toString(Resources.getResource("test-compare.yaml"), Charsets.UTF_8);
+        JsonNode json = new ObjectMapper().readTree(new YAMLFactory().createParser(yaml));
+        ScriptEnginePool pool = new ScriptEnginePool(1, 100, ScriptEnginePool.factory(ScriptEnginePool.GRAALJS));
+        try (JsonComparator comparator = new JsonComparator(pool)) {
+            json.fields().forEachRemaining((entry) -> {
+                String   name = entry.getKey();
+                JsonNode test = entry.getValue();
+                JsonNode actual = comparator.evalNode(test.get("actual"));
+                List<JsonComparator.Comparison> mismatches = comparator.compareNodes(test.get("expected"), actual);
+                boolean result = test.get("result").asBoolean();
+                System.out.println("graaljs results for test "+name+" expected result="+result);
+                mismatches.forEach((m)->System.out.println(m.toString()));
+                assertEquals(result, mismatches.isEmpty());
+                assertEquals(result, JsonMatcher.compile(test.get("expected")).match(comparator, actual).isEmpty());
+            });
+            comparator.evalScript("var leaked=1");
+        }
+        try (JsonComparator comparator = new JsonComparator(pool)) {
+            assertEquals(1, pool.getReused());
+            assertEquals(JsonComparator.Result.SUCCESS, comparator.evalScript("expect(typeof leaked=='undefined')"));
+        }
+    }
+    @Test
+    public void testVariables() throws Exception {
+        JsonNode body = new ObjectMapper(new YAMLFactory()).readTree("{id: 7, tags: [a, b]}");
+        try (JsonComparator comparator = new JsonComparator().setBinding(JsonComparator.Binding.VIEW)) {
+            comparator.putJson("body", body);
+            assertSame(body, comparator.getVariable("body"));
+            assertEquals(JsonComparator.Result.SUCCESS, comparator.evalScript("expect(body.tags.length==2)"));
+            assertEquals(JsonComparator.Result.SUCCESS, comparator.evalScript("expect(body.missing===undefined && body.tags[2]===undefined)"));
+            assertEquals(JsonComparator.Result.SUCCESS, comparator.evalScript("expect(body.tags.map(function(t) { return t+t; }).join()=='aa,bb')"));
+            assertEquals(JsonComparator.Result.SUCCESS, comparator.evalScript("expect(body.tags.indexOf('b')==1 && body.hasOwnProperty('id'))"));
+            assertSame(body, comparator.getVariable("body"));
+            comparator.evalScript("var body={id: 8}; var count=3");
+            assertEquals(8, comparator.getVariable("body").get("id").asInt());
+            assertEquals(3, comparator.getVariable("count").asInt());
+            assertSame(body, comparator.getVariables().get("body"));
+            assertNull(comparator.getVariable("nothing"));
+        }
+    }
+    @Test
+    public void testVariablesSource() throws Exception {
+        JsonNode body = new ObjectMapper(new YAMLFactory()).readTree("{id: 7, tags: [a, b]}");
+        List<String> engines = new ArrayList<>(Arrays.asList(ScriptEnginePool.GRAALJS));
+        if (ScriptEnginePool.getDefaultEngine().equals(ScriptEnginePool.NASHORN)) {
+            engines.add(ScriptEnginePool.NASHORN);
+        }
+        for (String engine : engines) {
+            ScriptEnginePool pool = new ScriptEnginePool(1, 100, ScriptEnginePool.factory(engine));
+            try (JsonComparator comparator = new JsonComparator(pool)) {
+                comparator.putJson("body", body);
+                comparator.putJson("tags", body.get("tags"));
+                assertEquals(JsonComparator.Result.SUCCESS, comparator.evalScript("expect(body.tags.length==2 && tags[1]=='b')"));
+                assertSame(body, comparator.getVariable("body"));
+                assertSame(body.get("tags"), comparator.getVariable("tags"));
+                comparator.evalScript("var tags=tags.concat(['c']); var count=3; var state={ids: [1, 2], f: function() {}}");
+                assertSame(body, comparator.getVariable("body"));
+                assertEquals(engine, "[\"a\",\"b\",\"c\"]", comparator.getVariable("tags").toString());
+                assertEquals(engine, "{\"ids\":[1,2]}", comparator.getVariable("state").toString());
+                assertEquals(engine, 3, comparator.getVariable("count").asInt());
+                assertNull(comparator.getVariable("nothing"));
+            }
+        }
+    }
+    @Test
+    public void testMismatchPaths() throws Exception {
+        ObjectMapper yaml = new ObjectMapper(new YAMLFactory());
+        JsonNode expected = yaml.readTree("{x: 1, sub: [one, two, {a: b}], same: {deep: [1, 2, 3]}}");
+        JsonNode actual   = yaml.readTree("{x: 2, sub: [one, too, {a: c}], same: {deep: [1, 2, 3]}}");
+        try (JsonComparator comparator = new JsonComparator()) {
+            for (List<JsonComparator.Comparison> mismatches : Arrays.asList(
+                    comparator.compareNodes(expected, actual),
+                    JsonMatcher.compile(expected).match(comparator, actual))) {
+                List<String> paths = new ArrayList<>();
+                mismatches.forEach((m)->paths.add(m.getPath().toString()));
+                Collections.sort(paths);
+                assertEquals("[/sub/1, /sub/2/a, /x]", paths.toString());
+            }
+            comparator.setLimit(1);
+            assertEquals(1, comparator.compareNodes(expected, actual).size());
+            assertEquals(1, JsonMatcher.compile(expected).match(comparator, actual).size());
+        }
+    }
+    @Test
+    public void testJsonTemplate() throws Exception {
+        String yaml = Resources.toString(Resources.getResource("test-compare.yaml"), Charsets.UTF_8);
+        JsonNode json = new ObjectMapper().readTree(new YAMLFactory().createParser(yaml));
+        JsonComparator comparator = new JsonComparator();
+        json.fields().forEachRemaining((entry) -> {
+            JsonNode     actual   = entry.getValue().get("actual");
+            JsonTemplate template = JsonTemplate.compile(actual);
+            JsonNode     first    = template.instantiate(comparator);
+            JsonNode     second   = template.instantiate(comparator);
+            assertEquals(comparator.evalNode(actual.deepCopy()), first);
+            assertEquals(first, second);
+            assertEquals(actual, template.getTemplate());
+        });
+        // scripts returned by scripts are evaluated in turn
+        JsonNode nested = new ObjectMapper(new YAMLFactory()).readTree("{a: '${({b: \"${1+1}\"})}'}");
+        JsonNode instance = JsonTemplate.compile(nested).instantiate(comparator);
+        assertEquals(2, instance.get("a").get("b").asInt());
+        assertEquals(comparator.evalNode(nested.deepCopy()), instance);
+    }
+    @Test
+    public void testProviderFiles() throws Exception {
+        Provider.Loader loader = Provider.load("test-provider");
+        Object[][] inline = loader.get("test1").getObjects();
+        for (String id : new String[] {"test2", "test3", "test5"}) {
+            List<Object[]> rows = new ArrayList<>();
+            loader.get(id).iterator().forEachRemaining(rows::add);
+            assertEquals(inline.length, rows.size());
+            for (int i=0; i<inline.length; i++) {
+                assertEquals(inline[i][0], rows.get(i)[0]);
+            }
+        }
+    }
+    @Test
+    public void testProviderGenerate() throws Exception {
+        Provider provider = Provider.load("test-provider").get("test4");
+        Object[][] first  = provider.getObjects();
+        Object[][] second = provider.getObjects();
+        assertEquals(30, first.length);
+        for (int i=0; i<first.length; i++) {
+            @SuppressWarnings("unchecked")
+            List<JsonNode> row = (List<JsonNode>)first[i][0];
+            assertEquals(i/3+1, row.get(0).asInt());
+            assertEquals(new String[] {"foo", "bar", "bat"}[i%3], row.get(1).asText());
+            assertEquals(true, row.get(2).isIntegralNumber() && row.get(2).asLong()>=0);
+            assertEquals(row, second[i][0]);
+        }
+    }
+    @Test
+    public void testRegistry() throws Exception {
+        Provider.loadAll("test-provider", "test-provider");
+        List<Provider> providers = Collections.synchronizedList(new ArrayList<>());
+        Arrays.stream(new String[] {"provider1", "provider1", "test1"}).parallel().forEach((id) -> {
+            try {
+                providers.add(Provider.get(id));
+            } catch (IOException e) {
+                fail(e.toString());
+            }
+        });
+        assertEquals(3, providers.size());
+        assertEquals(true, Provider.get("provider1")==Provider.get("provider1"));
+        try {
+            Provider.get("no such provider");
+            fail("expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+    @Test
+    public void testStepGraph() throws Exception {
+        String yaml = "parallel: true\n"+
+                      "steps:\n"+
+                      "- request: {method: GET, path: /a}\n"+
+                      "  after: var a = response.body.id\n"+
+                      "- request: {method: GET, path: /b}\n"+
+                      "  response: {body: {id: '${var b=actual; success}'}}\n"+
+                      "- request: {method: GET, path: '${\"/c?x=\"+\"a\"}'}\n"+
+                      "- request: {method: POST, path: /d, body: {a: '${a}', b: '${b}'}}\n"+
+                      "- after: println(response.status)\n";
+        TestSequence sequence = new ObjectMapper(new YAMLFactory()).readValue(yaml, TestSequence.class);
+        StepGraph graph = sequence.getGraph();
+        assertEquals("[]",     Arrays.toString(graph.getPredecessors(0)));
+        assertEquals("[]",     Arrays.toString(graph.getPredecessors(1)));
+        assertEquals("[]",     Arrays.toString(graph.getPredecessors(2)));
+        assertEquals("[0, 1]", Arrays.toString(graph.getPredecessors(3)));
+        assertEquals("[3]",    Arrays.toString(graph.getPredecessors(4)));
+        assertEquals(3,        graph.getSource(4));
+        assertEquals(-1,       graph.getSource(3));
+
+        yaml = "parallel: true\n"+
+               "steps:\n"+
+               "- after: var state = {}; var ids = []; var counts = {}\n"+
+               "- request: {method: GET, path: /a}\n"+
+               "  after: state.token = response.body.token\n"+
+               "- request: {method: GET, path: /b}\n"+
+               "  after: ids.push(response.body.id)\n"+
+               "- request: {method: GET, path: '${\"/c/\"+state.token}'}\n"+
+               "  after: for (k in response.body) counts[k]++\n"+
+               "- request: {method: GET, path: '/d/${JSON.stringify(k)}'}\n"+
+               "- after: record(ids)\n"+
+               "- request: {method: GET, path: /f}\n";
+        sequence = new ObjectMapper(new YAMLFactory()).readValue(yaml, TestSequence.class);
+        graph = sequence.getGraph();
+        assertEquals("[]",           Arrays.toString(graph.getPredecessors(0)));
+        assertEquals("[0]",          Arrays.toString(graph.getPredecessors(1)));
+        assertEquals("[0]",          Arrays.toString(graph.getPredecessors(2)));
+        assertEquals("[0, 1]",       Arrays.toString(graph.getPredecessors(3)));
+        assertEquals("[3]",          Arrays.toString(graph.getPredecessors(4)));
+        assertEquals("[0, 1, 2, 3, 4]", Arrays.toString(graph.getPredecessors(5)));
+        assertEquals("[5]",          Arrays.toString(graph.getPredecessors(6)));
+    }
+    @Test
+    public void testRecordReplay() throws Exception {
+        File archive = File.createTempFile("replay", ".jsonl.gz");
+        archive.deleteOnExit();
+        StubServer origin = new StubServer() {
+            private int count = 0;
+            @Override
+            protected synchronized Response respond(String method, String uri, byte[] body) {
+                ObjectNode node = JsonNodeFactory.instance.objectNode();
+                node.put("uri", uri);
+                node.put("count", ++count);
+                return new Response().setStatus(200).setBody(node);
+            }
+        };
+        Request request = new Request().setPath("/things?id=1");
+        String  baseURI = Request.getBaseURI();
+        try (HttpClientTransport http = new HttpClientTransport()) {
+            origin.start();
+            try (RecordingTransport recorder = new RecordingTransport(http, archive)) {
+                Request.setBaseURI(origin.getURI());
+                recorder.invoke(request).parseBody();
+                recorder.invoke(request).parseBody();
+            } finally {
+                origin.close();
+            }
+            try (StubServer replay = new ReplayServer(archive).start()) {
+                Request.setBaseURI(replay.getURI());
+                for (int count : new int[] {1, 2, 2}) {
+                    JsonNode body = http.invoke(request).parseBody().getBody();
+                    assertEquals("/things?id=1", body.get("uri").asText());
+                    assertEquals(count, body.get("count").asInt());
+                }
+                assertEquals(404, http.invoke(new Request().setPath("/other")).getStatus());
+            }
+        } finally {
+            Request.setBaseURI(baseURI);
+        }
+    }
+    @Test
+    public void testContractServer() throws Exception {
+        String yaml = "steps:\n"+
+                      "- request: {method: GET, path: '/things?count=1'}\n"+
+                      "  response: {status: 200, type: application/json, body: [{id: '${first=actual}', name: thing}]}\n"+
+                      "- request: {method: DELETE, path: '${\"/things/\"+first}'}\n"+
+                      "  response: {status: 204}\n"+
+                      "- request: {method: POST, path: '${\"/\"+\"things\"}'}\n"+
+                      "  response: {status: '${success}', body: {id: 1, '*': '${success}'}}\n";
+        TestSequence sequence = new ObjectMapper(new YAMLFactory()).readValue(yaml, TestSequence.class);
+        String baseURI = Request.getBaseURI();
+        try (HttpClientTransport http = new HttpClientTransport();
+             StubServer server = new ContractServer().setPadding(100).add(sequence).start()) {
+            Request.setBaseURI(server.getURI());
+            JsonNode body = http.invoke(new Request().setPath("/things")).parseBody().getBody();
+            assertEquals("[{\"id\":null,\"name\":\"thing\"}]", body.toString());
+            assertEquals(204, http.invoke(new Request().setMethod(Request.Method.DELETE).setPath("/things/42")).getStatus());
+            Response created = http.invoke(new Request().setMethod(Request.Method.POST).setPath("/things")).parseBody();
+            assertEquals(200, created.getStatus());
+            assertEquals(1, created.getBody().get("id").asInt());
+            assertEquals(true, created.getBody().toString().length()>=100);
+            assertEquals(404, http.invoke(new Request().setPath("/other")).getStatus());
+        } finally {
+            Request.setBaseURI(baseURI);
+        }
+    }
+    @Test
+    public void testResponseType() {
+        Response response = new Response().setType("Application/JSON; charset=UTF-8");
+        assertEquals("application/json", response.getType());
+        assertEquals(true, response.isJson());
+        assertEquals("text/plain", response.setType(" text/plain ").getType());
+        assertEquals("", response.setType("").getType());
+    }
+    @Test
+    public void testRunAsync() throws Exception {
+        String yaml = "steps:\n"+
+                      "- request: {method: GET, path: /things/1}\n"+
+                      "  response: {status: 200, body: {id: 1, name: thing}}\n"+
+                      "- request: {method: DELETE, path: /things/1}\n"+
+                      "  response: {status: 204}\n";
+        TestSequence sequence = new ObjectMapper(new YAMLFactory()).readValue(yaml, TestSequence.class);
+        String    baseURI   = Request.getBaseURI();
+        Transport transport = Request.getTransport();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (HttpAsyncClientTransport async = new HttpAsyncClientTransport(2, 8, 4);
+             StubServer server = new ContractServer().add(sequence).start()) {
+            Request.setBaseURI(server.getURI());
+            Request.setTransport(async);
+            List<CompletableFuture<TestSequence.Result>> futures = new ArrayList<>();
+            for (int i=0; i<50; i++) {
+                futures.add(sequence.runAsync(executor));
+            }
+            for (CompletableFuture<TestSequence.Result> future : futures) {
+                TestSequence.Result result = future.get(30, TimeUnit.SECONDS);
+                result.forEachError(System.out::println);
+                assertEquals(true, result.ok);
+                assertEquals(2, result.steps.size());
+            }
+            assertEquals(100, async.getRequests());
+            assertEquals(8, async.getPoolStats().getMax());
+        } finally {
+            Request.setBaseURI(baseURI);
+            Request.setTransport(transport);
+            executor.shutdown();
+        }
+    }
+    @Test
+    public void testLoadRunner() throws Exception {
+        ObjectMapper yaml = new ObjectMapper(new YAMLFactory());
+        TestSequence sequence = yaml.readValue("parameters: [id]\n"+
+                                               "steps:\n"+
+                                               "- request: {method: GET, path: '${\"/things/\"+id}'}\n"+
+                                               "  response: {status: 200, body: {name: thing}}\n"+
+                                               "- request: {method: GET, path: /health}\n"+
+                                               "  response: {status: 200}\n", TestSequence.class);
+        Provider provider = yaml.readValue("parameters: [id]\n"+
+                                           "data: [{id: 1}, {id: 2}, {id: 3}]\n", Provider.class);
+        int[] hits = new int[4];
+        StubServer server = new ContractServer() {
+            @Override
+            protected synchronized Response respond(String method, String uri, byte[] body) {
+                if (uri.startsWith("/things/")) {
+                    hits[Integer.parseInt(uri.substring("/things/".length()))]++;
+                }
+                return super.respond(method, uri, body);
+            }
+        }.add(sequence);
+        String    baseURI   = Request.getBaseURI();
+        Transport transport = Request.getTransport();
+        try (HttpClientTransport http = new HttpClientTransport()) {
+            server.start();
+            Request.setBaseURI(server.getURI());
+            Request.setTransport(http);
+            LoadRunner.Summary summary = new LoadRunner(sequence).setProvider(provider)
+                                                                 .setUsers(3)
+                                                                 .setDuration(500)
+                                                                 .run();
+            System.out.print(summary);
+            assertEquals(true, summary.iterations>0);
+            assertEquals(0, summary.failures);
+            assertEquals(2, summary.steps.length);
+            for (LoadRunner.StepSummary step : summary.steps) {
+                assertEquals(summary.iterations, step.count);
+                assertEquals(0, step.errors);
+                assertEquals(true, step.min<=step.max && step.total>=step.max);
+            }
+            // the rows are drawn round robin across all users
+            assertEquals(summary.iterations, hits[1]+hits[2]+hits[3]);
+            assertEquals(true, hits[1]-hits[3]<=1 && hits[1]>=hits[2] && hits[2]>=hits[3]);
+        } finally {
+            server.close();
+            Request.setBaseURI(baseURI);
+            Request.setTransport(transport);
+        }
+    }
     public JsonNode responseAsNode(com.jayway.restassured.response.Response response) {
         ObjectNode node = JsonNodeFactory.instance.objectNode();
         node.set("status", JsonNodeFactory.instance.numberNode(response.statusCode()));
@@ -2,6 +2,8 @@ package com.cleo.labs.resttest;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 import org.testng.annotations.BeforeClass;
@@ -28,11 +30,11 @@ public class ProviderDrivenTest {
     }
 
     @DataProvider(name = "test")
-    public Object[][] createData() throws IOException {
+    public Iterator<Object[]> createData() throws IOException {
         if (provider!=null) {
-            return Provider.load(provider).get(test).getObjects();
+            return Provider.load(provider).get(test).iterator();
         } else {
-            return new Object[][] {new Object[] {new ArrayList<JsonNode>()}};
+            return Collections.singletonList(new Object[] {new ArrayList<JsonNode>()}).iterator();
         }
     }
 